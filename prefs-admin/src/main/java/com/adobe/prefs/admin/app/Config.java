@@ -4,6 +4,7 @@ import com.adobe.prefs.admin.infra.HtmlMessageConverter;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.hateoas.config.EnableHypermediaSupport;
+import org.springframework.http.CacheControl;
 import org.springframework.http.MediaType;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
@@ -42,6 +43,11 @@ public class Config implements WebMvcConfigurer {
         return new PrefsController();
     }
 
+    @Bean
+    MetricsController metricsController() {
+        return new MetricsController();
+    }
+
     @Bean
     MultipartResolver multipartResolver() {
         return new StandardServletMultipartResolver();
@@ -57,9 +63,10 @@ public class Config implements WebMvcConfigurer {
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
+        // the responses may be stored, but must be revalidated (against their ETag) before being reused
         WebContentInterceptor webContentInterceptor = new WebContentInterceptor();
-        webContentInterceptor.setCacheSeconds(0);
-        registry.addInterceptor(new WebContentInterceptor());
+        webContentInterceptor.setCacheControl(CacheControl.noCache());
+        registry.addInterceptor(webContentInterceptor);
     }
 
 }
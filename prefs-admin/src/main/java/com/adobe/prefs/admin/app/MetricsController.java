@@ -0,0 +1,89 @@
+package com.adobe.prefs.admin.app;
+
+import com.adobe.prefs.zookeeper.ZkCacheStats;
+import com.adobe.prefs.zookeeper.ZkEventDispatcher;
+import com.adobe.prefs.zookeeper.ZkManager;
+import com.adobe.prefs.zookeeper.ZkMetrics;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Exposes the {@link ZkManager#metrics()} (along with the event delivery and cache statistics)
+ * in the Prometheus text format, so they can be scraped along with those of the other services.
+ */
+@RestController
+class MetricsController {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET)
+    void metrics(HttpServletResponse response) throws IOException {
+        response.setContentType(CONTENT_TYPE);
+        final PrintWriter out = response.getWriter();
+        final ZkMetrics metrics = ZkManager.metrics();
+
+        out.println("# HELP zk_prefs_operation_seconds Latency of the preference operations and zookeeper requests.");
+        out.println("# TYPE zk_prefs_operation_seconds histogram");
+        for (Map.Entry<String, ZkMetrics.Operation> entry : metrics.getOperations().entrySet()) {
+            final String labels = "operation=\"" + entry.getKey() + "\"";
+            final ZkMetrics.Operation operation = entry.getValue();
+            for (Map.Entry<Double, Long> bucket : operation.histogram().entrySet()) {
+                out.println("zk_prefs_operation_seconds_bucket{" + labels + ",le=\"" + seconds(bucket.getKey()) + "\"} "
+                        + bucket.getValue());
+            }
+            out.println("zk_prefs_operation_seconds_sum{" + labels + "} " + seconds(operation.getTotalMillis()));
+            out.println("zk_prefs_operation_seconds_count{" + labels + "} " + operation.getCount());
+        }
+        out.println("# HELP zk_prefs_operation_errors_total Failed preference operations.");
+        out.println("# TYPE zk_prefs_operation_errors_total counter");
+        metrics.getOperations().forEach((name, operation) ->
+                out.println("zk_prefs_operation_errors_total{operation=\"" + name + "\"} " + operation.getErrorCount()));
+
+        gauge(out, "zk_prefs_nodes", "Preference nodes neither removed nor closed.", metrics.getNodeCount());
+        gauge(out, "zk_prefs_watches", "Preference nodes watching their children.", metrics.getWatchCount());
+        gauge(out, "zk_prefs_listeners", "Registered preference and node change listeners.", metrics.getListenerCount());
+
+        final ZkEventDispatcher events = ZkManager.eventDispatcher();
+        gauge(out, "zk_prefs_events_queued", "Events waiting to be delivered.", events.getQueueDepth());
+        counter(out, "zk_prefs_events_delivered_total", "Delivered listener notifications.", events.getDeliveredCount());
+        counter(out, "zk_prefs_events_dropped_total", "Events dropped as the queue of their node was full.", events.getDroppedCount());
+        counter(out, "zk_prefs_events_coalesced_total", "Superseded preference updates.", events.getCoalescedCount());
+
+        final ZkCacheStats cache = ZkManager.cacheStats();
+        counter(out, "zk_prefs_missing_key_hits_total", "Reads of missing keys answered from memory.",
+                cache.getMissingKeyHitCount());
+        counter(out, "zk_prefs_missing_key_misses_total", "Reads of missing keys that went to zookeeper.",
+                cache.getMissingKeyMissCount());
+
+        counter(out, "zk_prefs_compression_input_bytes_total", "Size of the compressed values, before compression.",
+                metrics.getUncompressedBytes());
+        counter(out, "zk_prefs_compression_output_bytes_total", "Size of the compressed values, as stored.",
+                metrics.getCompressedBytes());
+        out.flush();
+    }
+
+    private static void gauge(PrintWriter out, String name, String help, long value) {
+        metric(out, name, "gauge", help, value);
+    }
+
+    private static void counter(PrintWriter out, String name, String help, long value) {
+        metric(out, name, "counter", help, value);
+    }
+
+    private static void metric(PrintWriter out, String name, String type, String help, long value) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " " + type);
+        out.println(name + " " + value);
+    }
+
+    private static String seconds(double millis) {
+        return Double.isInfinite(millis) ? "+Inf" : BigDecimal.valueOf(millis).movePointLeft(3).toPlainString();
+    }
+}
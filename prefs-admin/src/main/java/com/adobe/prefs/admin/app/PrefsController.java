@@ -4,6 +4,9 @@ import com.adobe.prefs.admin.core.NodeResource;
 import com.adobe.prefs.admin.core.Paths;
 import com.adobe.prefs.admin.core.PrefResource;
 import com.adobe.prefs.admin.core.UrlIO;
+import com.adobe.prefs.zookeeper.VersionedPreferences;
+import com.adobe.prefs.zookeeper.ZkManager;
+import com.adobe.prefs.zookeeper.ZkSnapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.hateoas.ResourceSupport;
@@ -18,6 +21,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.servlet.http.HttpServletRequest;
@@ -31,6 +35,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.InvalidPreferencesFormatException;
 import java.util.prefs.Preferences;
@@ -39,6 +44,7 @@ import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
 import static org.springframework.http.HttpStatus.NOT_IMPLEMENTED;
+import static org.springframework.http.HttpStatus.PRECONDITION_FAILED;
 import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 
 @RestController
@@ -63,6 +69,13 @@ class PrefsController {
         }
     }
 
+    /**
+     * @return the preferences the paths of the given root are resolved against
+     */
+    Preferences prefs(PreferencesRoot root) {
+        return root.prefs;
+    }
+
     @RequestMapping(value = "/", method = RequestMethod.GET)
     @ResponseStatus(HttpStatus.FOUND)
     void redirect(HttpServletResponse response) {
@@ -77,7 +90,7 @@ class PrefsController {
             consumes = {MediaType.TEXT_XML_VALUE, MediaType.APPLICATION_XML_VALUE})
     ResponseEntity<Void> importPreferences(InputStream in) throws IOException, InvalidPreferencesFormatException {
         logger.info("Importing preferences from file...");
-        Preferences.importPreferences(in);
+        ZkManager.importPreferences(in);
         logger.info("Preferences import succeeded");
         return seeOtherResponse("/");
     }
@@ -89,37 +102,74 @@ class PrefsController {
     }
 
     @RequestMapping(value = "/{root}/**", method = RequestMethod.GET)
-    ResourceSupport getPreference(@PathVariable PreferencesRoot root, HttpServletRequest request) throws BackingStoreException {
+    ResourceSupport getPreference(@PathVariable PreferencesRoot root, HttpServletRequest request,
+                                  HttpServletResponse response, WebRequest webRequest) throws BackingStoreException {
+        final long start = System.nanoTime();
         final PrefSpec prefSpec = new PrefSpec(root, request);
-        if (!root.prefs.nodeExists(prefSpec.nodePath)) {
+        if (!prefs(root).nodeExists(prefSpec.nodePath)) {
             throw new ResourceNotFoundException(prefSpec.nodePath);
         }
-        final Preferences prefs = root.prefs.node(prefSpec.nodePath);
+        final Preferences prefs = prefs(root).node(prefSpec.nodePath);
+        // the node is only read and rendered if it changed since the representation the client already has
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        if (webRequest.checkNotModified(etag(prefs, prefSpec.key, request))) {
+            logger.info("Checked {} (not modified) in {} ms",
+                    Paths.path(root.toString(), prefSpec.nodePath, prefSpec.key),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return null;
+        }
+        // the keys, values and children of the node, all read in a single pass
+        final ZkSnapshot snapshot = ZkManager.snapshotNode(prefs);
+        final ResourceSupport resource;
         if (prefSpec.key == null) {
-            return new NodeResource(root.toString(), prefs);
+            resource = new NodeResource(root.toString(), prefs, snapshot);
         } else {
-            if (! Arrays.asList(prefs.keys()).contains(prefSpec.key) ) {
+            final ZkSnapshot.Entry entry = snapshot.entries(prefs.absolutePath()).get(prefSpec.key);
+            if (entry == null) {
                 throw new ResourceNotFoundException();
             }
-
-            return new PrefResource(root.toString(), prefs, prefSpec.key, true);
+            resource = new PrefResource(root.toString(), prefs, prefSpec.key, entry.value(), true);
         }
+        logger.info("Read {} in {} ms with {} zookeeper requests",
+                Paths.path(root.toString(), prefSpec.nodePath, prefSpec.key),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), snapshot.requests());
+        return resource;
     }
 
+    /**
+     * Tags the representations of a node (and of its keys) with the stamp of the node, which only takes the versions
+     * of its znodes, along with the media types they are negotiated for.
+     * The tags of the keys start with the version of the key, which the conditional writes expect in {@code If-Match}.
+     */
+    String etag(Preferences prefs, String key, HttpServletRequest request) throws BackingStoreException {
+        final String accept = request.getHeader(HttpHeaders.ACCEPT);
+        final String version = key != null && prefs instanceof VersionedPreferences
+                ? String.valueOf(((VersionedPreferences) prefs).version(key)) + '.'
+                : "";
+        return '"' + version + ZkManager.stamp(prefs) + '-'
+                + Integer.toHexString(accept != null ? accept.hashCode() : 0) + '"';
+    }
 
     @RequestMapping(value = "/{root}/**", method = RequestMethod.PUT)
     ResponseEntity<Void> setPreference(@PathVariable PreferencesRoot root, HttpServletRequest request, @RequestParam(required = false) String value) {
         final PrefSpec prefSpec = new PrefSpec(root, request);
-        Preferences prefs = root.prefs.node(prefSpec.nodePath);
+        final boolean conditional = isConditional(prefSpec, request);
+        Preferences prefs = prefs(root).node(prefSpec.nodePath);
         if (prefSpec.key != null) {
             if (value == null || value.isEmpty()) {
                 throw new NoValueException(prefSpec.key);
             }
+            final String decoded;
             try {
-                prefs.put(prefSpec.key, URLDecoder.decode(value, "UTF-8"));
+                decoded = URLDecoder.decode(value, "UTF-8");
             } catch (UnsupportedEncodingException e) {
                 throw new IllegalStateException("WTF-8", e);
             }
+            if (conditional) {
+                writeIfMatch(prefs, prefSpec, request, decoded);
+            } else {
+                prefs.put(prefSpec.key, decoded);
+            }
         }
         return seeOtherResponse(prefSpec);
     }
@@ -127,31 +177,96 @@ class PrefsController {
     @RequestMapping(value = "/{root}/**", method = RequestMethod.DELETE)
     ResponseEntity<Void> removePreference(@PathVariable PreferencesRoot root, HttpServletRequest request) throws BackingStoreException {
         final PrefSpec prefSpec = new PrefSpec(root, request);
-        if (! root.prefs.nodeExists(prefSpec.nodePath) ) {
+        final boolean conditional = isConditional(prefSpec, request);
+        if (! prefs(root).nodeExists(prefSpec.nodePath) ) {
             throw new ResourceNotFoundException(prefSpec.nodePath);
         }
-        Preferences prefs = root.prefs.node(prefSpec.nodePath);
+        Preferences prefs = prefs(root).node(prefSpec.nodePath);
         if (prefSpec.key != null) {
             if (! Arrays.asList(prefs.keys()).contains(prefSpec.key) ) {
                 throw new ResourceNotFoundException(prefSpec.key);
             }
-            prefs.remove(prefSpec.key);
+            if (conditional) {
+                writeIfMatch(prefs, prefSpec, request, null);
+            } else {
+                prefs.remove(prefSpec.key);
+            }
         } else {
             prefs.removeNode();
         }
         return seeOtherResponse(prefSpec);
     }
 
+    /**
+     * @return whether the write is conditioned by either {@code If-Match} or {@code If-None-Match: *},
+     * which is only supported for keys
+     */
+    boolean isConditional(PrefSpec prefSpec, HttpServletRequest request) {
+        final boolean conditional = request.getHeader(HttpHeaders.IF_MATCH) != null
+                || request.getHeader(HttpHeaders.IF_NONE_MATCH) != null;
+        if (conditional && prefSpec.key == null) {
+            throw new IllegalArgumentException("Only the writes of keys can be conditional");
+        }
+        return conditional;
+    }
+
+    /**
+     * Writes (or removes, when the value is null) a key only if it's at the version of the entity tag
+     * in {@code If-Match} (or at any version for {@code *}), or only if it's missing for {@code If-None-Match: *},
+     * with a single compare-and-set, so it fails with 412 if the key was modified in the meantime.
+     */
+    void writeIfMatch(Preferences prefs, PrefSpec prefSpec, HttpServletRequest request, String value) {
+        if (!(prefs instanceof VersionedPreferences)) {
+            throw new UnsupportedOperationException("Conditional writes are only supported in zookeeper");
+        }
+        final VersionedPreferences versioned = (VersionedPreferences) prefs;
+        final String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+        final int expected;
+        if (ifMatch != null) {
+            expected = "*".equals(ifMatch.trim()) ? versioned.version(prefSpec.key) : version(ifMatch);
+            if (expected < 0) {
+                throw new PreconditionFailedException(prefSpec.key + " does not match " + ifMatch);
+            }
+        } else if ("*".equals(request.getHeader(HttpHeaders.IF_NONE_MATCH).trim())) {
+            expected = -1;
+        } else {
+            throw new IllegalArgumentException("Only \"If-None-Match: *\" is supported for writes");
+        }
+        final boolean written = value != null
+                ? versioned.compareAndSet(prefSpec.key, expected, value)
+                : versioned.compareAndRemove(prefSpec.key, expected);
+        if (!written) {
+            throw new PreconditionFailedException(prefSpec.key + " is not at version " + expected);
+        }
+    }
+
+    /**
+     * @return the version of a key in its entity tag (either as tagged by {@link #etag} or just the version),
+     * or -1 if it's not a strong tag of a version
+     */
+    static int version(String etag) {
+        final String tag = etag.trim();
+        if (tag.length() < 2 || tag.charAt(0) != '"' || tag.charAt(tag.length() - 1) != '"') {
+            return -1;
+        }
+        final int end = tag.indexOf('.');
+        try {
+            return Math.max(Integer.parseInt(tag.substring(1, end > 0 ? end : tag.length() - 1)), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     @RequestMapping(value = "/{root}/**", method = RequestMethod.GET, params = "export", produces = MediaType.APPLICATION_XML_VALUE)
     void export(@PathVariable PreferencesRoot root, HttpServletRequest request,
                 HttpServletResponse response,
                 @RequestParam String[] export) throws BackingStoreException, IOException {
         final Set<String> exportOptions = new HashSet<>(Arrays.asList(export));
         final PrefSpec prefSpec = new PrefSpec(root, request);
-        if (!root.prefs.nodeExists(prefSpec.nodePath)) {
+        if (!prefs(root).nodeExists(prefSpec.nodePath)) {
             throw new ResourceNotFoundException(prefSpec.nodePath);
         }
-        Preferences prefs = root.prefs.node(prefSpec.nodePath);
+        Preferences prefs = prefs(root).node(prefSpec.nodePath);
         final boolean shallow = exportOptions.contains("shallow");
         response.setContentType("application/xml");
         if (exportOptions.contains("file")) {
@@ -162,9 +277,9 @@ class PrefsController {
                             shallow ? "shallow" : "deep"));
         }
         if (shallow) {
-            prefs.exportNode(response.getOutputStream());
+            ZkManager.exportNode(prefs, response.getOutputStream());
         } else {
-            prefs.exportSubtree(response.getOutputStream());
+            ZkManager.exportSubtree(prefs, response.getOutputStream());
         }
     }
 
@@ -190,6 +305,12 @@ class PrefsController {
         logger.info(NOT_FOUND.getReasonPhrase(), e);
     }
 
+    @ExceptionHandler
+    @ResponseStatus(PRECONDITION_FAILED)
+    public void preconditionFailed(PreconditionFailedException e) {
+        logger.info(PRECONDITION_FAILED.getReasonPhrase(), e);
+    }
+
     @ExceptionHandler
     @ResponseStatus(SERVICE_UNAVAILABLE)
     public void serviceUnavailable(IllegalStateException e) {
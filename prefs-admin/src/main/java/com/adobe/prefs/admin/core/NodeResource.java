@@ -1,17 +1,18 @@
 package com.adobe.prefs.admin.core;
 
+import com.adobe.prefs.zookeeper.ZkManager;
+import com.adobe.prefs.zookeeper.ZkSnapshot;
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.google.common.base.Function;
 import com.google.common.base.Throwables;
-import com.google.common.collect.Iterables;
 import org.springframework.hateoas.Link;
 import org.springframework.hateoas.Resources;
 
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlSeeAlso;
 import javax.xml.bind.annotation.XmlTransient;
-import java.util.Arrays;
+import java.util.List;
 import java.util.prefs.BackingStoreException;
+import java.util.stream.Collectors;
 import java.util.prefs.Preferences;
 
 @XmlRootElement(name = "resource")
@@ -24,32 +25,39 @@ public class NodeResource extends Resources<PrefResource> {
     }
 
     public NodeResource(final String realm, final Preferences prefs) {
-        super(getPrefs(realm, prefs));
+        this(realm, prefs, snapshot(prefs));
+    }
+
+    /**
+     * Builds the resource from a snapshot of the node (see {@link ZkManager#snapshotNode(Preferences)}),
+     * rather than reading its keys, values and children one by one.
+     */
+    public NodeResource(final String realm, final Preferences prefs, final ZkSnapshot snapshot) {
+        super(getPrefs(realm, prefs, snapshot));
         this.prefs = prefs;
         add(new Link(Paths.path(realm, prefs.absolutePath(), null)));
         if (prefs.parent() != null) {
             add(new Link(Paths.path(realm, prefs.parent().absolutePath(), null), "parent"));
         }
-        try {
-            final String[] children = prefs.childrenNames();
-            Arrays.sort(children);
-            add(Iterables.transform(Arrays.asList(children), childName -> new Link(Paths.path(realm, prefs.absolutePath(), childName, null), childName)));
-        } catch (BackingStoreException e) {
-            throw new RuntimeException(e);
-        }
-
+        add(snapshot.childrenNames(prefs.absolutePath()).stream()
+                .map(childName -> new Link(Paths.path(realm, prefs.absolutePath(), childName, null), childName))
+                .collect(Collectors.toList()));
     }
 
-    private static Iterable<PrefResource> getPrefs(final String realm, final Preferences prefs) {
+    private static ZkSnapshot snapshot(final Preferences prefs) {
         try {
-            final String[] keys = prefs.keys();
-            Arrays.sort(keys);
-            return Iterables.transform(Arrays.asList(keys), key -> new PrefResource(realm, prefs, key, false));
+            return ZkManager.snapshotNode(prefs);
         } catch (BackingStoreException e) {
             throw Throwables.propagate(e);
         }
     }
 
+    private static List<PrefResource> getPrefs(final String realm, final Preferences prefs, final ZkSnapshot snapshot) {
+        return snapshot.entries(prefs.absolutePath()).entrySet().stream()
+                .map(entry -> new PrefResource(realm, prefs, entry.getKey(), entry.getValue().value(), false))
+                .collect(Collectors.toList());
+    }
+
     @JsonIgnore
     @XmlTransient
     public String getName() {
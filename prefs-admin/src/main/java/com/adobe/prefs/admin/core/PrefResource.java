@@ -18,8 +18,12 @@ public class PrefResource extends ResourceSupport {
     }
 
     public PrefResource(String realm, Preferences parent, String key, boolean withParentLink) {
+        this(realm, parent, key, parent.get(key, null), withParentLink);
+    }
+
+    public PrefResource(String realm, Preferences parent, String key, String value, boolean withParentLink) {
         this.key = key;
-        this.value = parent.get(key, null);
+        this.value = value;
         add(new Link(Paths.path(realm, parent.absolutePath(), key)));
         if (withParentLink) {
             add(new Link(Paths.path(realm, parent.absolutePath(), null), "parent"));
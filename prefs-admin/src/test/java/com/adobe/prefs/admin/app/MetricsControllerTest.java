@@ -0,0 +1,33 @@
+package com.adobe.prefs.admin.app;
+
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.core.StringContains.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class MetricsControllerTest {
+
+    final MockMvc mvc = MockMvcBuilders.standaloneSetup(new MetricsController(), new PrefsController()).build();
+
+    @Test
+    public void shouldExposeTheMetrics() throws Exception {
+        // the preferences of these tests are not stored in zookeeper, but loading the class registers its operations
+        Class.forName("com.adobe.prefs.zookeeper.ZkPreferences");
+        mvc.perform(get("/metrics"))
+                .andExpect(status().is(200))
+                .andExpect(content().contentType(MetricsController.CONTENT_TYPE))
+                .andExpect(content().string(containsString("# TYPE zk_prefs_operation_seconds histogram")))
+                .andExpect(content().string(containsString(
+                        "zk_prefs_operation_seconds_bucket{operation=\"spi.get\",le=\"0.000001\"} ")))
+                .andExpect(content().string(containsString(
+                        "zk_prefs_operation_seconds_bucket{operation=\"spi.get\",le=\"+Inf\"} ")))
+                .andExpect(content().string(containsString("zk_prefs_operation_seconds_count{operation=\"spi.get\"} ")))
+                .andExpect(content().string(containsString("\nzk_prefs_nodes ")))
+                .andExpect(content().string(containsString("\nzk_prefs_missing_key_hits_total ")))
+                .andExpect(content().string(containsString("\nzk_prefs_compression_input_bytes_total ")));
+    }
+}
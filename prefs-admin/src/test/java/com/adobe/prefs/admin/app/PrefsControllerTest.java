@@ -1,6 +1,11 @@
 package com.adobe.prefs.admin.app;
 
+import com.adobe.prefs.admin.app.PrefsController.PreferencesRoot;
 import com.adobe.prefs.admin.infra.HtmlMessageConverter;
+import com.adobe.prefs.zookeeper.TestZkServer;
+import com.adobe.prefs.zookeeper.ZkManager;
+import com.adobe.prefs.zookeeper.ZkPreferencesFactory;
+import org.hamcrest.core.IsNot;
 import org.hamcrest.core.StringStartsWith;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.http.converter.xml.Jaxb2CollectionHttpMessageConverter;
@@ -8,17 +13,24 @@ import org.springframework.http.converter.xml.Jaxb2RootElementHttpMessageConvert
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.Closeable;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.prefs.Preferences;
 
 import static java.lang.ClassLoader.getSystemResourceAsStream;
 import static java.nio.file.Files.readAllBytes;
 import static org.springframework.http.MediaType.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+import static org.testng.Assert.assertEquals;
 
 public class PrefsControllerTest {
 
@@ -34,6 +46,19 @@ public class PrefsControllerTest {
     final String child = "child/";
     final String key = "key";
 
+    private TestZkServer zookeeper;
+
+    @BeforeClass
+    public void startZookeeper() throws Exception {
+        zookeeper = new TestZkServer();
+        zookeeper.startZookeeper();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopZookeeper() throws Exception {
+        zookeeper.stopZookeeper();
+    }
+
     @Test(dataProvider = "prefs")
     public void shouldListRootContentsAsJson(String p) throws Exception {
         mvc.perform(get(p).accept(APPLICATION_JSON))
@@ -110,6 +135,108 @@ public class PrefsControllerTest {
                 .andExpect(status().is(404));
     }
 
+    @Test(dataProvider = "prefs")
+    public void shouldOnlyRenderModifiedNodes(String p) throws Exception {
+        final String path = p + "tagged/";
+        mvc.perform(put(path + key).contentType(APPLICATION_FORM_URLENCODED).param("value", "val"));
+        final String etag = mvc.perform(get(path).accept(APPLICATION_JSON))
+                .andExpect(status().is(200))
+                .andExpect(header().string("Vary", "Accept"))
+                .andReturn().getResponse().getHeader("ETag");
+        mvc.perform(get(path).accept(APPLICATION_JSON).header("If-None-Match", etag))
+                .andExpect(status().is(304))
+                .andExpect(header().string("ETag", etag))
+                .andExpect(content().string(""));
+        // another representation of the same node
+        mvc.perform(get(path).accept(APPLICATION_XML).header("If-None-Match", etag))
+                .andExpect(status().is(200));
+
+        mvc.perform(put(path + key).contentType(APPLICATION_FORM_URLENCODED).param("value", "modified"));
+        mvc.perform(get(path).accept(APPLICATION_JSON).header("If-None-Match", etag))
+                .andExpect(status().is(200))
+                .andExpect(header().string("ETag", IsNot.not(etag)));
+        mvc.perform(delete(path));
+    }
+
+    @Test(dataProvider = "prefs")
+    public void shouldOnlyWriteKeysConditionally(String p) throws Exception {
+        mvc.perform(put(p + "conditional/").header("If-Match", "\"0\""))
+                .andExpect(status().is(400));
+        // not supported by the in-memory preferences
+        mvc.perform(put(p + "conditional/" + key).header("If-None-Match", "*")
+                .contentType(APPLICATION_FORM_URLENCODED).param("value", "val"))
+                .andExpect(status().is(501));
+    }
+
+    @Test
+    public void shouldWriteKeysConditionallyInZookeeper() throws Exception {
+        final String namespace = "/admin-" + UUID.randomUUID();
+        final Properties properties = (Properties) System.getProperties().clone();
+        System.setProperty("java.util.prefs.systemRoot", namespace + "/sys");
+        System.setProperty("java.util.prefs.userRoot", namespace + "/usr");
+        final ZkPreferencesFactory factory = new ZkPreferencesFactory();
+        System.setProperties(properties);
+        final Preferences usr = factory.userRoot();
+        final Preferences sys = factory.systemRoot();
+        final MockMvc zk = MockMvcBuilders.standaloneSetup(new PrefsController() {
+            @Override
+            Preferences prefs(PreferencesRoot root) {
+                return root == PreferencesRoot.usr ? usr : sys;
+            }
+        }).setMessageConverters(new MappingJackson2HttpMessageConverter()).build();
+        final String path = "/usr/conditional/" + key;
+        try {
+            zk.perform(put(path).contentType(APPLICATION_FORM_URLENCODED).param("value", "v1"))
+                    .andExpect(status().is(303));
+            final String etag = zk.perform(get(path).accept(APPLICATION_JSON))
+                    .andExpect(status().is(200))
+                    .andReturn().getResponse().getHeader("ETag");
+            assertEquals(PrefsController.version(etag), 0);
+
+            // a matching tag writes the key, and the next version gets a new tag
+            zk.perform(put(path).header("If-Match", etag)
+                    .contentType(APPLICATION_FORM_URLENCODED).param("value", "v2"))
+                    .andExpect(status().is(303));
+            final String updated = zk.perform(get(path).accept(APPLICATION_JSON))
+                    .andExpect(status().is(200))
+                    .andExpect(jsonPath("value").value("v2"))
+                    .andExpect(header().string("ETag", IsNot.not(etag)))
+                    .andReturn().getResponse().getHeader("ETag");
+            assertEquals(PrefsController.version(updated), 1);
+
+            // a stale tag neither writes nor removes the key
+            zk.perform(put(path).header("If-Match", etag)
+                    .contentType(APPLICATION_FORM_URLENCODED).param("value", "v3"))
+                    .andExpect(status().is(412));
+            zk.perform(delete(path).header("If-Match", etag))
+                    .andExpect(status().is(412));
+            zk.perform(get(path).accept(APPLICATION_JSON))
+                    .andExpect(status().is(200))
+                    .andExpect(jsonPath("value").value("v2"))
+                    .andExpect(header().string("ETag", updated));
+
+            zk.perform(delete(path).header("If-Match", updated))
+                    .andExpect(status().is(303));
+            zk.perform(get(path).accept(APPLICATION_JSON))
+                    .andExpect(status().is(404));
+        } finally {
+            ((Closeable) usr).close();
+            ((Closeable) sys).close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
+    @Test
+    public void shouldReadTheVersionsOfEntityTags() {
+        assertEquals(PrefsController.version("\"3.1a2b-c3d4\""), 3);
+        assertEquals(PrefsController.version(" \"12\" "), 12);
+        assertEquals(PrefsController.version("\"1a2b-c3d4\""), -1);
+        assertEquals(PrefsController.version("W/\"3.1a2b\""), -1);
+        assertEquals(PrefsController.version("3"), -1);
+        assertEquals(PrefsController.version("\"-2\""), -1);
+        assertEquals(PrefsController.version("\"\""), -1);
+    }
+
     @Test(dataProvider = "prefs")
     public void shouldExportInlineContents(String p) throws Exception {
         mvc.perform(get(p).param("export", ""))
@@ -0,0 +1,45 @@
+package com.adobe.prefs.benchmarks;
+
+import com.adobe.prefs.testing.InMemoryPreferencesFactory;
+import com.adobe.prefs.zookeeper.TestZkServer;
+import com.adobe.prefs.zookeeper.ZkManager;
+import com.adobe.prefs.zookeeper.ZkPreferencesFactory;
+
+import java.util.UUID;
+import java.util.prefs.PreferencesFactory;
+
+/**
+ * The preferences backing stores being measured.
+ */
+public enum Backend {
+    memory {
+        @Override
+        PreferencesFactory factory() {
+            return new InMemoryPreferencesFactory();
+        }
+    },
+    zookeeper {
+        @Override
+        PreferencesFactory factory() throws Exception {
+            startZookeeper();
+            final String root = "/prefs-benchmarks/" + UUID.randomUUID();
+            return new ZkPreferencesFactory(root + "/sys", root + "/usr") {};
+        }
+    };
+
+    private static TestZkServer server;
+
+    abstract PreferencesFactory factory() throws Exception;
+
+    /**
+     * Starts the embedded zookeeper server (once per JVM), unless a quorum is configured with {@code zk.quorum},
+     * and waits for the client to connect.
+     */
+    private static synchronized void startZookeeper() throws Exception {
+        if (server == null && System.getProperty("zk.quorum") == null) {
+            server = new TestZkServer();
+            server.startZookeeper();
+        }
+        ZkManager.curatorFramework().blockUntilConnected();
+    }
+}
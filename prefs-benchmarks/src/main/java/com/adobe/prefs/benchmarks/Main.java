@@ -0,0 +1,26 @@
+package com.adobe.prefs.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options,
+ * but writing the results as JSON to {@code jmh-result.json} unless told otherwise,
+ * so that the results of different releases can be compared.
+ */
+public class Main {
+
+    public static void main(String... args) throws Exception {
+        final CommandLineOptions cmdLine = new CommandLineOptions(args);
+        final OptionsBuilder options = new OptionsBuilder();
+        if (!cmdLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!cmdLine.getResult().hasValue()) {
+            options.result("jmh-result.json");
+        }
+        new Runner(options.parent(cmdLine).build()).run();
+    }
+}
@@ -0,0 +1,207 @@
+package com.adobe.prefs.benchmarks;
+
+import com.adobe.prefs.zookeeper.ZkManager;
+import com.adobe.prefs.zookeeper.ZkSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+/**
+ * Latency of the basic preferences operations, for each of the {@link Backend backing stores}.
+ * <p>
+ * Every benchmark works on its own node, populated with {@link #KEYS} keys and {@link #CHILDREN} children
+ * (each with {@link #KEYS} keys of its own), so the figures of a remote store mostly reflect
+ * the number of round trips each operation takes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreferencesBenchmark {
+    static final int KEYS = 50;
+    static final int CHILDREN = 10;
+    static final int DEPTH = 8;
+    static final int LISTENERS = 10;
+
+    @Param({"memory", "zookeeper"})
+    Backend backend;
+
+    Preferences root;
+    Preferences node;
+    Preferences scratch;
+    long counter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = backend.factory().userRoot().node(UUID.randomUUID().toString());
+        node = root.node("node");
+        for (int i = 0; i < KEYS; i++) {
+            node.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < CHILDREN; i++) {
+            final Preferences child = node.node("child" + i);
+            for (int j = 0; j < KEYS; j++) {
+                child.put("key" + j, "value" + j);
+            }
+        }
+        node.putInt("int", 42);
+        node.flush();
+    }
+
+    @Setup(Level.Iteration)
+    public void createScratchNode() {
+        scratch = root.node("scratch");
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeScratchNode() throws BackingStoreException {
+        scratch.removeNode();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws BackingStoreException {
+        root.removeNode();
+    }
+
+    @Benchmark
+    public String get() {
+        return node.get("key0", null);
+    }
+
+    /**
+     * Reads of the same node from several threads at once.
+     */
+    @Benchmark
+    @Threads(8)
+    public String getContended() {
+        return node.get("key0", null);
+    }
+
+    @Benchmark
+    public int getInt() {
+        return node.getInt("int", -1);
+    }
+
+    @Benchmark
+    public void put() {
+        node.put("written", String.valueOf(counter++));
+    }
+
+    @Benchmark
+    public String[] keys() throws BackingStoreException {
+        return node.keys();
+    }
+
+    @Benchmark
+    public String[] childrenNames() throws BackingStoreException {
+        return node.childrenNames();
+    }
+
+    /**
+     * Materialises a new path of {@link #DEPTH} nodes.
+     */
+    @Benchmark
+    public Preferences deepNode() {
+        final StringBuilder path = new StringBuilder(String.valueOf(counter++));
+        for (int i = 1; i < DEPTH; i++) {
+            path.append("/level").append(i);
+        }
+        return scratch.node(path.toString());
+    }
+
+    @Benchmark
+    public void exportSubtree(Blackhole blackhole) throws IOException, BackingStoreException {
+        node.exportSubtree(new BlackholeOutputStream(blackhole));
+    }
+
+    /**
+     * The streaming export of the zookeeper store; the same as {@link #exportSubtree} for the other stores.
+     */
+    @Benchmark
+    public void streamSubtree(Blackhole blackhole) throws IOException, BackingStoreException {
+        ZkManager.exportSubtree(node, new BlackholeOutputStream(blackhole));
+    }
+
+    /**
+     * The pipelined subtree read of the zookeeper store; a plain walk of the tree for the other stores.
+     */
+    @Benchmark
+    public ZkSnapshot snapshot() throws BackingStoreException {
+        return ZkManager.snapshot(node);
+    }
+
+    /**
+     * Time from a write until all the {@link #LISTENERS} listeners of the node have been notified.
+     */
+    @State(Scope.Benchmark)
+    public static class Listeners {
+        volatile String expected;
+        volatile CountDownLatch notified;
+        Preferences node;
+
+        @Setup(Level.Trial)
+        public void setUp(PreferencesBenchmark benchmark) {
+            node = benchmark.root.node("listened");
+            for (int i = 0; i < LISTENERS; i++) {
+                final PreferenceChangeListener listener = event -> {
+                    // late notifications of previous writes are not counted
+                    if (event.getNewValue() != null && event.getNewValue().equals(expected)) {
+                        notified.countDown();
+                    }
+                };
+                node.addPreferenceChangeListener(listener);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean listenerFanOut(Listeners listeners) throws InterruptedException {
+        final String value = String.valueOf(counter++);
+        final CountDownLatch notified = new CountDownLatch(LISTENERS);
+        listeners.notified = notified;
+        listeners.expected = value;
+        listeners.node.put("key", value);
+        return notified.await(10, TimeUnit.SECONDS);
+    }
+
+    private static final class BlackholeOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+        }
+    }
+}
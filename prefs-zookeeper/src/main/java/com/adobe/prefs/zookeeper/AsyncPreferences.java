@@ -0,0 +1,47 @@
+package com.adobe.prefs.zookeeper;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.prefs.Preferences;
+
+/**
+ * Non-blocking counterparts of the most common {@link Preferences} operations,
+ * implemented by the zookeeper preference nodes.
+ * <p>
+ * The operations are sent to zookeeper in the background, so any number of them can be in flight at once
+ * from a single thread:
+ * <pre>
+ *     AsyncPreferences prefs = (AsyncPreferences) Preferences.userRoot().node("my/app");
+ *     CompletableFuture&lt;String&gt; host = prefs.getAsync("host", "localhost");
+ *     CompletableFuture&lt;String&gt; port = prefs.getAsync("port", "80");
+ *     String url = host.thenCombine(port, (h, p) -&gt; h + ':' + p).get();
+ * </pre>
+ * The futures are completed by the zookeeper event thread, so the stages depending on them should not block.
+ * <p>
+ * Just like their blocking counterparts, the operations fail with {@link IllegalStateException} if the node
+ * has been removed, and with {@link NullPointerException} or {@link IllegalArgumentException} for invalid arguments,
+ * all of which are thrown right away.
+ */
+public interface AsyncPreferences {
+
+    /**
+     * @see Preferences#get(String, String)
+     */
+    CompletableFuture<String> getAsync(String key, String def);
+
+    /**
+     * The writes of the same key are applied in the order they were requested, the synchronous ones included.
+     *
+     * @see Preferences#put(String, String)
+     */
+    CompletableFuture<Void> putAsync(String key, String value);
+
+    /**
+     * @see Preferences#keys()
+     */
+    CompletableFuture<String[]> keysAsync();
+
+    /**
+     * @see Preferences#childrenNames()
+     */
+    CompletableFuture<String[]> childrenNamesAsync();
+}
@@ -0,0 +1,40 @@
+package com.adobe.prefs.zookeeper;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.prefs.Preferences;
+
+/**
+ * Streaming access to values too large for the {@link Preferences} API (e.g. model thresholds or routing tables),
+ * implemented by the zookeeper preference nodes:
+ * <pre>
+ *     StreamPreferences prefs = (StreamPreferences) Preferences.userRoot().node("my/app");
+ *     try (OutputStream out = prefs.putStream("routes")) {
+ *         table.writeTo(out);
+ *     }
+ *     try (InputStream in = prefs.getStream("routes")) {
+ *         table = RoutingTable.readFrom(in);
+ *     }
+ * </pre>
+ * The values larger than a single znode can hold are stored in chunks, which are read and written as the streams
+ * are consumed, so the whole value is never held in memory. The value is only replaced once the output stream
+ * is closed, and atomically so: the readers see either the whole previous value or the whole new one.
+ * <p>
+ * Just like the other writes, the streams fail with {@link IllegalStateException} if the node has been removed,
+ * and with {@link NullPointerException} or {@link IllegalArgumentException} for invalid keys.
+ * The values stored in chunks are listed as keys, but read as missing through the {@link Preferences} getters,
+ * and left out of the exports.
+ */
+public interface StreamPreferences {
+
+    /**
+     * @return the raw bytes of the value of the given key, or null if the key is missing;
+     * the stream fails with an {@link java.io.IOException} if the value is replaced or removed while being read
+     */
+    InputStream getStream(String key);
+
+    /**
+     * @return a stream writing the raw bytes of the value of the given key, which is stored when the stream is closed
+     */
+    OutputStream putStream(String key);
+}
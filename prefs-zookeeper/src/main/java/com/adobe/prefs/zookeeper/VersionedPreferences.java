@@ -0,0 +1,67 @@
+package com.adobe.prefs.zookeeper;
+
+import java.util.prefs.Preferences;
+
+/**
+ * Conditional writes of the preferences, implemented by the zookeeper preference nodes,
+ * so that concurrent writers of the same key don't need a lock to avoid overwriting each other:
+ * <pre>
+ *     VersionedPreferences prefs = (VersionedPreferences) Preferences.userRoot().node("my/app");
+ *     // an atomic counter
+ *     while (true) {
+ *         String count = prefs.get("count", null);
+ *         if (prefs.compareAndSet("count", count, String.valueOf(count == null ? 1 : Long.parseLong(count) + 1))) {
+ *             break;
+ *         }
+ *     }
+ *     // a lease, taken only if nobody holds it
+ *     boolean leader = prefs.compareAndSet("leader", -1, hostName);
+ * </pre>
+ * The writes are conditioned on the version of the zookeeper node of the key (which starts at 0 when the key is
+ * created and is incremented by each write), either given explicitly or the one the expected value was found at,
+ * so they only succeed if the key was not modified in between, by any client.
+ * <p>
+ * Just like the other writes, they fail with {@link IllegalStateException} if the node has been removed,
+ * and with {@link NullPointerException} or {@link IllegalArgumentException} for invalid keys and values.
+ */
+public interface VersionedPreferences {
+
+    /**
+     * @return the version of the value of the given key, or -1 if the key is missing
+     */
+    int version(String key);
+
+    /**
+     * Sets the value of a key only if it's at the expected version.
+     *
+     * @param expectedVersion the current version of the value, or -1 to only create a missing key
+     * @return whether the value was set
+     * @see Preferences#put(String, String)
+     */
+    boolean compareAndSet(String key, int expectedVersion, String value);
+
+    /**
+     * Sets the value of a key only if it currently has the expected value.
+     *
+     * @param expectedValue the current value, or null to only create a missing key
+     * @return whether the value was set
+     * @see Preferences#put(String, String)
+     */
+    boolean compareAndSet(String key, String expectedValue, String value);
+
+    /**
+     * Removes a key only if its value is at the expected version.
+     *
+     * @return whether the key was removed
+     * @see Preferences#remove(String)
+     */
+    boolean compareAndRemove(String key, int expectedVersion);
+
+    /**
+     * Removes a key only if it currently has the expected value.
+     *
+     * @return whether the key was removed
+     * @see Preferences#remove(String)
+     */
+    boolean compareAndRemove(String key, String expectedValue);
+}
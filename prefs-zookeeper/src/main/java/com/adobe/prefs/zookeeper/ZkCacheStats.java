@@ -0,0 +1,46 @@
+package com.adobe.prefs.zookeeper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the reads of missing keys, which (with {@code prefs.zk.cache.values}) are remembered by the watched nodes:
+ * a key found missing in zookeeper is answered from memory until the watch of its node reports it was created.
+ * <p>
+ * An instance is shared by all the preference nodes and can be obtained with {@link ZkManager#cacheStats()}
+ * in order to monitor how many zookeeper reads it saves.
+ */
+public final class ZkCacheStats {
+
+    private final AtomicLong missingKeyHits = new AtomicLong();
+    private final AtomicLong missingKeyMisses = new AtomicLong();
+
+    ZkCacheStats() {
+    }
+
+    void missingKeyHit() {
+        missingKeyHits.incrementAndGet();
+    }
+
+    void missingKeyMiss() {
+        missingKeyMisses.incrementAndGet();
+    }
+
+    /**
+     * @return the number of reads of missing keys answered from memory
+     */
+    public long getMissingKeyHitCount() {
+        return missingKeyHits.get();
+    }
+
+    /**
+     * @return the number of reads of missing keys that went to zookeeper
+     */
+    public long getMissingKeyMissCount() {
+        return missingKeyMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ZkCacheStats{missingKeyHits=" + missingKeyHits + ", missingKeyMisses=" + missingKeyMisses + "}";
+    }
+}
@@ -0,0 +1,274 @@
+package com.adobe.prefs.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.apache.curator.utils.ZKPaths.makePath;
+
+/**
+ * Storage of the values too large for a single znode (whose data is limited by the {@code jute.maxbuffer}
+ * setting of zookeeper, 1 MB by default), as ordered chunks of up to {@code prefs.zk.chunk.bytes} (256 KB by default).
+ * <p>
+ * The chunks are stored next to the znode of the key, which only holds a small <em>manifest</em> (the generation
+ * of the chunks, their number and the size of the value), and are named after the key with the hidden
+ * {@value #CHUNK_PREFIX} prefix, so they are never listed as keys or children, just like the child marker.
+ * A new value is written in chunks of a new generation, which are only published by the transaction swapping
+ * the manifest (and removing the chunks of the previous generation), so readers see either the whole previous value
+ * or the whole new one. A value modified or removed while being read makes the reader fail, rather than
+ * mix both values.
+ * <p>
+ * Both reading and writing only hold a single chunk in memory at a time.
+ */
+final class ZkChunks {
+    private static final Logger logger = LoggerFactory.getLogger(ZkChunks.class);
+
+    static final String CHUNK_PREFIX = "_PrefX_chunk_";
+    static final int CHUNK_BYTES = Integer.getInteger("prefs.zk.chunk.bytes", 256 * 1024);
+
+    private ZkChunks() {}
+
+    /**
+     * @return whether the given znode name is the one of a chunk, to be hidden from the keys and children
+     */
+    static boolean isChunk(String name) {
+        return name != null && name.startsWith(CHUNK_PREFIX);
+    }
+
+    /**
+     * The content of the znode of a value stored in chunks.
+     */
+    static final class Manifest {
+        private static final int LENGTH = 8 + 4 + 8;
+
+        final long generation;
+        final int chunks;
+        final long size;
+
+        Manifest(long generation, int chunks, long size) {
+            this.generation = generation;
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        /**
+         * @return the manifest stored as the given data, or null if it's a plain value
+         */
+        static Manifest parse(byte[] data) {
+            final byte[] body = ZkCompression.body(data, ZkCompression.CHUNKS);
+            if (body == null || body.length != LENGTH) {
+                return null;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(body);
+            return new Manifest(buffer.getLong(), buffer.getInt(), buffer.getLong());
+        }
+
+        byte[] bytes() {
+            return ZkCompression.framed(ZkCompression.CHUNKS,
+                    ByteBuffer.allocate(LENGTH).putLong(generation).putInt(chunks).putLong(size).array());
+        }
+
+        /**
+         * @param path the path of the key
+         */
+        String chunkPath(String path, int index) {
+            final ZKPaths.PathAndNode key = ZKPaths.getPathAndNode(path);
+            return makePath(key.getPath(),
+                    CHUNK_PREFIX + key.getNode() + '.' + Long.toHexString(generation) + '.' + index);
+        }
+
+        /**
+         * @return the operations removing the chunks of the key at the given path
+         */
+        List<CuratorOp> deleteOps(CuratorFramework curator, String path) throws Exception {
+            final List<CuratorOp> ops = new ArrayList<>(chunks);
+            for (int i = 0; i < chunks; i++) {
+                ops.add(curator.transactionOp().delete().forPath(chunkPath(path, i)));
+            }
+            return ops;
+        }
+
+        @Override
+        public String toString() {
+            return chunks + " chunks of generation " + Long.toHexString(generation) + ", " + size + " bytes";
+        }
+    }
+
+    /**
+     * Reads the chunks of a value one at a time, as they are consumed.
+     */
+    static final class Input extends InputStream {
+        private final CuratorFramework curator;
+        private final String path;
+        private final Manifest manifest;
+        private int next;
+        private byte[] chunk = new byte[0];
+        private int position;
+
+        Input(CuratorFramework curator, String path, Manifest manifest) {
+            this.curator = curator;
+            this.path = path;
+            this.manifest = manifest;
+        }
+
+        private boolean fill() throws IOException {
+            while (position == chunk.length) {
+                if (next == manifest.chunks) {
+                    return false;
+                }
+                final String chunkPath = manifest.chunkPath(path, next);
+                try {
+                    chunk = curator.getData().forPath(chunkPath);
+                } catch (NoNodeException e) {
+                    throw new IOException("Value modified or removed while being read: " + path, e);
+                } catch (Exception e) {
+                    throw new IOException("Failed to read " + chunkPath, e);
+                }
+                next++;
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? chunk[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int length = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return chunk.length - position;
+        }
+    }
+
+    /**
+     * Writes a value in chunks of a new generation as it's being written, publishing it when closed.
+     * A value fitting in a single chunk is stored as a plain value instead.
+     */
+    abstract static class Output extends OutputStream {
+        private final CuratorFramework curator;
+        private final String path;
+        private final long generation = ThreadLocalRandom.current().nextLong();
+        private final byte[] buffer;
+        private int length;
+        private int chunks;
+        private long size;
+        private boolean closed;
+
+        Output(CuratorFramework curator, String path, int chunkBytes) {
+            this.curator = curator;
+            this.path = path;
+            this.buffer = new byte[chunkBytes];
+        }
+
+        /**
+         * Stores a value fitting in a single chunk.
+         */
+        protected abstract void putValue(byte[] value) throws Exception;
+
+        /**
+         * Publishes the value by swapping its manifest, along with the creation of the last chunk.
+         */
+        protected abstract void publish(Manifest manifest, CuratorOp lastChunk) throws Exception;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                if (length == buffer.length) {
+                    writeChunk();
+                }
+                final int count = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, count);
+                length += count;
+                size += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            try {
+                curator.create().forPath(manifest().chunkPath(path, chunks), buffer);
+                chunks++;
+                length = 0;
+            } catch (Exception e) {
+                discard();
+                throw new IOException("Failed to write a chunk of " + path, e);
+            }
+        }
+
+        private Manifest manifest() {
+            return new Manifest(generation, chunks + 1, size);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (chunks == 0) {
+                    putValue(Arrays.copyOf(buffer, length));
+                } else {
+                    final Manifest manifest = manifest();
+                    logger.debug("Publishing {} as {}", path, manifest);
+                    publish(manifest, curator.transactionOp().create()
+                            .forPath(manifest.chunkPath(path, chunks), Arrays.copyOf(buffer, length)));
+                }
+            } catch (Exception e) {
+                discard();
+                throw e instanceof IOException ? (IOException) e : new IOException("Failed to write " + path, e);
+            }
+        }
+
+        /**
+         * Removes the chunks written so far, which were never published.
+         */
+        private void discard() {
+            closed = true;
+            final Manifest manifest = manifest();
+            for (int i = 0; i < chunks; i++) {
+                try {
+                    curator.delete().forPath(manifest.chunkPath(path, i));
+                } catch (Exception e) {
+                    logger.warn("Failed to remove the unpublished chunk {} of {}", i, path, e);
+                }
+            }
+        }
+    }
+}
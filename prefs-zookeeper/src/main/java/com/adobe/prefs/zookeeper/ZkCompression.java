@@ -0,0 +1,191 @@
+package com.adobe.prefs.zookeeper;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Transparently compresses the values of at least {@code prefs.zk.compression.threshold} bytes (disabled by default),
+ * so that large values (e.g. JSON documents) cost less zookeeper memory, network traffic and snapshot space.
+ * <p>
+ * A compressed value starts with a small header: a {@code 0xFF} byte (which never occurs in UTF-8 text,
+ * so the values written without compression are still read as they are), two magic bytes and the codec.
+ * The values are compressed with Deflate, and only stored compressed when that makes them smaller. Their uncompressed
+ * length follows the codec, and decompression never produces more than that length, nor more than
+ * {@code prefs.zk.compression.max.bytes} (the {@code jute.maxbuffer} of zookeeper by default) in total,
+ * so a corrupt value cannot exhaust the heap.
+ * A raw binary value that happens to start with the header is stored behind a header as well (even when compression
+ * is disabled), so it's never mistaken for a compressed one. The same header also marks the manifests of the values
+ * stored in chunks (see {@link ZkChunks}), which are left as they are.
+ * <p>
+ * The time spent compressing and decompressing, along with the compression ratio, is reported by {@link ZkMetrics}.
+ */
+final class ZkCompression {
+    private static final byte[] HEADER = {(byte) 0xFF, 'z', 'c'};
+    private static final byte STORED = 0;
+    private static final byte DEFLATE = 1;
+    static final byte CHUNKS = 2;
+    private static final int LENGTH_BYTES = Integer.BYTES;
+    static final int MAX_BYTES = Integer.getInteger("prefs.zk.compression.max.bytes",
+            Integer.getInteger("jute.maxbuffer", 0xfffff));
+
+    static final ZkCompression NONE = new ZkCompression(-1);
+
+    private final int threshold;
+
+    /**
+     * @param threshold the minimum size of the values to compress; negative to disable compression
+     */
+    ZkCompression(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return the compression configured by the {@code prefs.zk.compression.threshold} system property
+     */
+    static ZkCompression configured() {
+        final int threshold = Integer.parseInt(System.getProperty("prefs.zk.compression.threshold", "-1"));
+        return threshold >= 0 ? new ZkCompression(threshold) : NONE;
+    }
+
+    boolean isEnabled() {
+        return threshold >= 0;
+    }
+
+    /**
+     * @return the data to store in zookeeper for the given value
+     */
+    byte[] encode(byte[] value) {
+        if (value == null) {
+            return null;
+        }
+        if (isEnabled() && value.length >= threshold && value.length > HEADER.length + 1 + LENGTH_BYTES
+                && value.length <= MAX_BYTES) {
+            final byte[] compressed = deflate(value);
+            if (compressed.length < value.length) {
+                return compressed;
+            }
+        }
+        return hasHeader(value) ? framed(STORED, value, value.length) : value;
+    }
+
+    /**
+     * @return the value stored as the given zookeeper data (which may be null),
+     * or the data itself if it is the manifest of a value stored in chunks
+     */
+    static byte[] decode(byte[] data) {
+        if (!isFramed(data) || !hasHeader(data)) {
+            return data;
+        }
+        switch (data[HEADER.length]) {
+            case STORED:
+                return Arrays.copyOfRange(data, HEADER.length + 1, data.length);
+            case DEFLATE:
+                return inflate(data);
+            case CHUNKS:
+                return data;
+            default:
+                throw new IllegalStateException("Unknown compression codec: " + data[HEADER.length]);
+        }
+    }
+
+    /**
+     * @return false if the given data (which may be null) is stored as it is, which only takes its first byte to tell
+     */
+    static boolean isFramed(byte[] data) {
+        return data != null && data.length > 0 && data[0] == HEADER[0];
+    }
+
+    private static boolean hasHeader(byte[] data) {
+        return data.length > HEADER.length && data[0] == HEADER[0] && data[1] == HEADER[1] && data[2] == HEADER[2];
+    }
+
+    /**
+     * @return the body of the given data if it has a header of the given codec, otherwise null
+     */
+    static byte[] body(byte[] data, byte codec) {
+        return isFramed(data) && hasHeader(data) && data[HEADER.length] == codec
+                ? Arrays.copyOfRange(data, HEADER.length + 1, data.length)
+                : null;
+    }
+
+    static byte[] framed(byte codec, byte[] body) {
+        return framed(codec, body, body.length);
+    }
+
+    private static byte[] framed(byte codec, byte[] body, int length) {
+        final byte[] framed = new byte[HEADER.length + 1 + length];
+        System.arraycopy(HEADER, 0, framed, 0, HEADER.length);
+        framed[HEADER.length] = codec;
+        System.arraycopy(body, 0, framed, HEADER.length + 1, length);
+        return framed;
+    }
+
+    private static byte[] deflate(byte[] value) {
+        final long start = System.nanoTime();
+        final Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(value);
+            deflater.finish();
+            // not worth compressing unless it shrinks, so the output never needs to outgrow the input
+            final byte[] buffer = new byte[value.length];
+            ByteBuffer.wrap(buffer).putInt(value.length);
+            int length = LENGTH_BYTES;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            final byte[] compressed = deflater.finished() ? framed(DEFLATE, buffer, length) : value;
+            ZkManager.metrics().compressed(value.length, compressed.length, start);
+            return compressed;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) {
+        final long start = System.nanoTime();
+        final Inflater inflater = new Inflater();
+        try {
+            final int offset = HEADER.length + 1 + LENGTH_BYTES;
+            if (data.length < offset) {
+                throw new IllegalStateException("Truncated compressed value");
+            }
+            final int length = ByteBuffer.wrap(data, HEADER.length + 1, LENGTH_BYTES).getInt();
+            if (length < 0 || length > MAX_BYTES) {
+                throw new IllegalStateException("Invalid compressed value length: " + length);
+            }
+            inflater.setInput(data, offset, data.length - offset);
+            final byte[] value = new byte[length];
+            int inflated = 0;
+            while (!inflater.finished()) {
+                // once the declared length is reached, only the end of the stream may remain
+                final int n = inflated < length
+                        ? inflater.inflate(value, inflated, length - inflated)
+                        : inflater.inflate(new byte[1]);
+                if (inflated == length && n > 0) {
+                    throw new IllegalStateException("Compressed value longer than its declared length " + length);
+                }
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated compressed value");
+                }
+                inflated += n;
+            }
+            if (inflated < length) {
+                throw new IllegalStateException("Compressed value shorter than its declared length " + length);
+            }
+            ZkManager.metrics().decompressed(start);
+            return value;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Invalid compressed value", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return isEnabled() ? "Deflate above " + threshold + " bytes" : "none";
+    }
+}
@@ -0,0 +1,270 @@
+package com.adobe.prefs.zookeeper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers the preference and node change events to the listeners, away from the zookeeper event threads.
+ * <p>
+ * Every preference node gets its own {@link Lane}: the events of a node reach its listeners one at a time and in
+ * the order they were triggered, while the events of different nodes may be delivered in parallel by the executor.
+ * The number of events waiting for delivery is bounded per lane; once the limit of a lane is reached, its new events
+ * are dropped (and counted), so that a slow listener can neither block the thread that triggers the events
+ * nor crowd out the events of the other nodes.
+ * <p>
+ * Bursts of updates of the same preference can also be <em>coalesced</em>: the first update starts a time window
+ * and only the latest value seen by the end of the window is delivered (see {@link #schedule(Runnable, long)}).
+ * <p>
+ * An instance is shared by all the preference nodes and can be obtained with {@link ZkManager#eventDispatcher()}
+ * in order to monitor the delivery, or replaced with {@link ZkManager#eventDispatcher(ZkEventDispatcher)}
+ * (e.g. in order to deliver the events with a thread pool of the application).
+ */
+public final class ZkEventDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(ZkEventDispatcher.class);
+    private static final long SLOW_LISTENER_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Executor executor;
+    private final int laneCapacity;
+    private final long coalesceMillis;
+    private volatile ScheduledExecutorService timer;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong listenerNanos = new AtomicLong();
+    private final AtomicLong maxListenerNanos = new AtomicLong();
+
+    /**
+     * @param executor runs the deliveries; {@code null} delivers the events in the thread that triggers them
+     * @param laneCapacity maximum number of events of a node waiting to be delivered
+     */
+    ZkEventDispatcher(Executor executor, int laneCapacity) {
+        this(executor, laneCapacity, 0);
+    }
+
+    /**
+     * @param executor runs the deliveries; {@code null} delivers the events in the thread that triggers them
+     * @param laneCapacity maximum number of events of a node waiting to be delivered
+     * @param coalesceMillis default time window for coalescing the updates of a preference; 0 disables coalescing
+     */
+    public ZkEventDispatcher(Executor executor, int laneCapacity, long coalesceMillis) {
+        this.executor = executor;
+        this.laneCapacity = laneCapacity;
+        this.coalesceMillis = coalesceMillis;
+    }
+
+    /**
+     * Returns a new delivery lane, which preserves the order of the events submitted to it.
+     */
+    Lane lane() {
+        return new Lane();
+    }
+
+    /**
+     * @return the default time window for coalescing the updates of a preference, in milliseconds
+     */
+    long getCoalesceMillis() {
+        return coalesceMillis;
+    }
+
+    /**
+     * Runs a task (typically, the delivery of the latest of a burst of updates) after the given delay.
+     */
+    void schedule(Runnable task, long delayMillis) {
+        timer().schedule(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.error("Could not deliver coalesced events", e);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records an event that was not delivered, since it was superseded by a later one.
+     */
+    void coalesced() {
+        coalesced.incrementAndGet();
+    }
+
+    private ScheduledExecutorService timer() {
+        if (timer != null) {
+            return timer;
+        } else synchronized (this) {
+            if (timer == null) {
+                timer = Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder().setNameFormat("zk-prefs-coalesce-%d").setDaemon(true).build());
+            }
+            return timer;
+        }
+    }
+
+    /**
+     * @return the number of events of all the nodes waiting to be delivered
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * @return the maximum number of events of a node waiting to be delivered
+     */
+    public int getLaneCapacity() {
+        return laneCapacity;
+    }
+
+    /**
+     * @return the number of listener notifications performed so far
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /**
+     * @return the number of events dropped because the queue of their node was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of preference updates that were not delivered, being superseded by a later update
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the total time spent in listeners, in milliseconds
+     */
+    public long getListenerTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(listenerNanos.get());
+    }
+
+    /**
+     * @return the longest time spent by a listener with a single event, in milliseconds
+     */
+    public long getMaxListenerTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxListenerNanos.get());
+    }
+
+    private void notify(Object listener, Object event, Runnable notification) {
+        final long start = System.nanoTime();
+        try {
+            notification.run();
+        } catch (Exception e) {
+            logger.error("Could not notify listener `" + listener + "` of event `" + event + "`", e);
+        } finally {
+            final long elapsed = System.nanoTime() - start;
+            delivered.incrementAndGet();
+            listenerNanos.addAndGet(elapsed);
+            maxListenerNanos.accumulateAndGet(elapsed, Math::max);
+            if (elapsed > SLOW_LISTENER_NANOS) {
+                logger.warn("Listener `{}` took {} ms to handle event `{}`",
+                        listener, TimeUnit.NANOSECONDS.toMillis(elapsed), event);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ZkEventDispatcher{queued=" + queued + ", delivered=" + delivered + ", dropped=" + dropped
+                + ", coalesced=" + coalesced + "}";
+    }
+
+    /**
+     * Serial queue of the events of a single preference node.
+     */
+    final class Lane implements Runnable {
+        private final Queue<Runnable> events = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicInteger laneQueued = new AtomicInteger();
+        private final AtomicLong laneDropped = new AtomicLong();
+
+        /**
+         * @return the number of events of this lane waiting to be delivered
+         */
+        int getQueueDepth() {
+            return laneQueued.get();
+        }
+
+        /**
+         * @return the number of events of this lane dropped because its queue was full
+         */
+        long getDroppedCount() {
+            return laneDropped.get();
+        }
+
+        /**
+         * Schedules the notification of a listener; the notifications submitted to the same lane
+         * are performed in order.
+         */
+        void submit(Object listener, Object event, Runnable notification) {
+            if (executor == null) {
+                ZkEventDispatcher.this.notify(listener, event, notification);
+                return;
+            }
+            if (laneQueued.incrementAndGet() > laneCapacity) {
+                laneQueued.decrementAndGet();
+                laneDropped.incrementAndGet();
+                dropped.incrementAndGet();
+                logger.warn("Dropped event `{}` for listener `{}`: {} events of the node already waiting for delivery",
+                        event, listener, laneCapacity);
+                return;
+            }
+            queued.incrementAndGet();
+            events.add(() -> ZkEventDispatcher.this.notify(listener, event, notification));
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    int count = 0;
+                    while (events.poll() != null) {
+                        laneQueued.decrementAndGet();
+                        queued.decrementAndGet();
+                        laneDropped.incrementAndGet();
+                        dropped.incrementAndGet();
+                        count++;
+                    }
+                    scheduled.set(false);
+                    logger.error("Dropped " + count + " events that could not be scheduled for delivery", e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Runnable event;
+                while ((event = events.poll()) != null) {
+                    laneQueued.decrementAndGet();
+                    queued.decrementAndGet();
+                    event.run();
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            // an event may have been submitted after the queue was found empty but before the flag was cleared
+            if (!events.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
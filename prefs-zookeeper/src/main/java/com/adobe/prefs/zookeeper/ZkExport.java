@@ -0,0 +1,210 @@
+package com.adobe.prefs.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import static com.adobe.prefs.zookeeper.ZkPreferences.CHILD_MARKER;
+import static com.adobe.prefs.zookeeper.ZkPreferences.isContainerNode;
+import static com.adobe.prefs.zookeeper.ZkPreferences.isValueNode;
+import static com.adobe.prefs.zookeeper.ZkUtils.UTF8;
+import static com.adobe.prefs.zookeeper.ZkUtils.basename;
+import static com.adobe.prefs.zookeeper.ZkUtils.inBackground;
+import static com.adobe.prefs.zookeeper.ZkUtils.string;
+import static org.apache.curator.utils.ZKPaths.makePath;
+
+/**
+ * Streaming export of a preference node (and optionally of its whole subtree) to the XML format
+ * of {@link Preferences#exportSubtree}.
+ * <p>
+ * Unlike the default export, which builds the whole document in memory and reads the keys one at a time,
+ * the tree is walked with background zookeeper reads, keeping up to {@link #WINDOW} of them in flight,
+ * and the document is written as the results arrive. The memory use only depends on the number of children
+ * of a single node, while the time spent depends on the zookeeper throughput rather than on its latency.
+ * <p>
+ * The values stored in chunks (see {@link StreamPreferences}) are left out, with a warning: they are longer than
+ * {@link Preferences#MAX_VALUE_LENGTH}, so the document could not be imported back.
+ */
+final class ZkExport {
+    private static final Logger logger = LoggerFactory.getLogger(ZkExport.class);
+
+    private static final String PREFS_DTD = "<!DOCTYPE preferences SYSTEM \"http://java.sun.com/dtd/preferences.dtd\">";
+    private static final int WINDOW = 1000;
+
+    private final CuratorFramework curator;
+    private final XMLStreamWriter writer;
+    private final long timeout;
+    private int nodes;
+    private int entries;
+
+    private ZkExport(CuratorFramework curator, XMLStreamWriter writer) {
+        this.curator = curator;
+        this.writer = writer;
+        this.timeout = curator.getZookeeperClient().getConnectionTimeoutMs();
+    }
+
+    /**
+     * Writes a node, along with its descendants when {@code deep}, to the given stream.
+     */
+    static void export(ZkPreferences node, OutputStream os, boolean deep) throws IOException, BackingStoreException {
+        if (!node.nodeExists("")) {
+            throw new IllegalStateException("Node has been removed.");
+        }
+        final long start = System.nanoTime();
+        final BufferedOutputStream out = new BufferedOutputStream(os);
+        try {
+            final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, UTF8);
+            final ZkExport export = new ZkExport(node.curator, writer);
+            export.write(node, deep);
+            writer.close();
+            out.flush();
+            logger.info("Exported {} entries of {} nodes from {} in {} ms", export.entries, export.nodes, node,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BackingStoreException(e);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BackingStoreException(e);
+        }
+    }
+
+    private void write(ZkPreferences node, boolean deep) throws Exception {
+        final CompletableFuture<List<String>> children = children(node.absolutePath());
+        writer.writeStartDocument(UTF8, "1.0");
+        writer.writeDTD(PREFS_DTD);
+        writer.writeStartElement("preferences");
+        writer.writeAttribute("EXTERNAL_XML_VERSION", "1.0");
+        writer.writeStartElement("root");
+        writer.writeAttribute("type", node.isUserNode() ? "user" : "system");
+
+        // the ancestors are written as empty nodes, just like the default export does
+        final List<String> ancestors = new ArrayList<>();
+        for (Preferences ancestor = node; ancestor.parent() != null; ancestor = ancestor.parent()) {
+            ancestors.add(0, ancestor.name());
+        }
+        for (String ancestor : ancestors) {
+            writer.writeEmptyElement("map");
+            writer.writeStartElement("node");
+            writer.writeAttribute("name", ancestor);
+        }
+        writeNode(node.absolutePath(), children, deep);
+        for (int i = 0; i < ancestors.size(); i++) {
+            writer.writeEndElement();
+        }
+
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndDocument();
+    }
+
+    /**
+     * Writes the entries of a node, as their data arrives, followed by its child nodes.
+     * The children of the next child node are requested while the current one is being written.
+     */
+    private void writeNode(String path, CompletableFuture<List<String>> childrenFuture, boolean deep) throws Exception {
+        nodes++;
+        final List<String> children = new ArrayList<>(await(childrenFuture));
+        children.remove(CHILD_MARKER);
+        children.removeIf(ZkChunks::isChunk);
+        Collections.sort(children);
+
+        final List<String> containers = new ArrayList<>();
+        final Deque<CompletableFuture<ChildData>> window = new ArrayDeque<>();
+        writer.writeStartElement("map");
+        for (String child : children) {
+            if (window.size() >= WINDOW) {
+                writeEntry(await(window.poll()), containers);
+            }
+            window.add(data(makePath(path, child)));
+        }
+        while (!window.isEmpty()) {
+            writeEntry(await(window.poll()), containers);
+        }
+        writer.writeEndElement();
+
+        if (!deep) {
+            return;
+        }
+        CompletableFuture<List<String>> next = containers.isEmpty() ? null : children(containers.get(0));
+        for (int i = 0; i < containers.size(); i++) {
+            final CompletableFuture<List<String>> current = next;
+            next = i + 1 < containers.size() ? children(containers.get(i + 1)) : null;
+            writer.writeStartElement("node");
+            writer.writeAttribute("name", basename(containers.get(i)));
+            writeNode(containers.get(i), current, true);
+            writer.writeEndElement();
+        }
+    }
+
+    private void writeEntry(ChildData child, List<String> containers) throws XMLStreamException {
+        if (child == null) {
+            // removed in the meantime
+            return;
+        }
+        if (isValueNode(child.getStat())) {
+            if (ZkChunks.Manifest.parse(child.getData()) != null) {
+                // too long for the format (and for the import), only available as a stream
+                logger.warn("Skipped the value of {}, stored in chunks", child.getPath());
+            } else {
+                entries++;
+                writer.writeEmptyElement("entry");
+                writer.writeAttribute("key", basename(child.getPath()));
+                writer.writeAttribute("value", string(ZkCompression.decode(child.getData())));
+            }
+        }
+        if (isContainerNode(child.getStat())) {
+            containers.add(child.getPath());
+        }
+    }
+
+    private <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (TimeoutException e) {
+            throw new TimeoutException("Timed out exporting preferences");
+        }
+    }
+
+    /**
+     * Lists the children of a node in the background; a missing node has no children.
+     */
+    private CompletableFuture<List<String>> children(String path) {
+        return inBackground(path, CuratorEvent::getChildren, Collections.emptyList(),
+                callback -> curator.getChildren().inBackground(callback).forPath(path));
+    }
+
+    /**
+     * Reads a node in the background; a missing node is mapped to null.
+     */
+    private CompletableFuture<ChildData> data(String path) {
+        return inBackground(path, event -> new ChildData(path, event.getStat(), event.getData()), null,
+                callback -> curator.getData().inBackground(callback).forPath(path));
+    }
+
+}
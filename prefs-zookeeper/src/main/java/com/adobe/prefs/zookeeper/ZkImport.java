@@ -0,0 +1,365 @@
+package com.adobe.prefs.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.prefs.InvalidPreferencesFormatException;
+import java.util.prefs.Preferences;
+
+import static com.adobe.prefs.zookeeper.ZkPreferences.CHILD_MARKER;
+import static com.adobe.prefs.zookeeper.ZkPreferences.isContainerNode;
+import static com.adobe.prefs.zookeeper.ZkUtils.bytes;
+import static org.apache.curator.utils.ZKPaths.makePath;
+
+/**
+ * Bulk import of an XML preferences document (as produced by {@link Preferences#exportSubtree})
+ * into the zookeeper tree of a root node.
+ * <p>
+ * Instead of replaying the document as one {@code node()} and {@code put()} at a time, the current state of all the
+ * imported nodes and keys is fetched in a single pipelined pass, unchanged values are skipped and all the
+ * remaining creates and (versioned) updates are grouped in as few transactions as allowed by the
+ * {@code jute.maxbuffer} limit of zookeeper.
+ * <p>
+ * Each transaction is applied atomically. Should one of them fail (e.g. because of a concurrent modification),
+ * the ones already applied are rolled back, so the import either succeeds as a whole or leaves the tree unchanged.
+ */
+final class ZkImport {
+    private static final Logger logger = LoggerFactory.getLogger(ZkImport.class);
+
+    private static final String PREFS_DTD_URI = "http://java.sun.com/dtd/preferences.dtd";
+    private static final int MAX_IN_FLIGHT = 1000;
+    // the zookeeper default for `jute.maxbuffer`
+    private static final int DEFAULT_MAX_BUFFER = 0xfffff;
+    // rough size of the fixed part of a serialized operation (header, ACL, flags, version)
+    private static final int OP_OVERHEAD = 64;
+
+    private final CuratorFramework curator;
+    private final int maxBatchBytes;
+    private final ZkCompression compression;
+
+    private final List<List<CuratorOp>> batches = new ArrayList<>();
+    private final List<List<CuratorOp>> rollbacks = new ArrayList<>();
+    // the chunks of the overwritten values stored in chunks, only removed once the import succeeded
+    private final List<CuratorOp> overwrittenChunks = new ArrayList<>();
+    private int batchBytes;
+    private int writtenValues;
+    private int unchangedValues;
+    private int createdNodes;
+
+    ZkImport(CuratorFramework curator, ZkCompression compression) {
+        // leave half of the buffer for the request framing and the transaction results
+        this(curator, Integer.getInteger("jute.maxbuffer", DEFAULT_MAX_BUFFER) / 2, compression);
+    }
+
+    ZkImport(CuratorFramework curator, int maxBatchBytes) {
+        this(curator, maxBatchBytes, ZkCompression.NONE);
+    }
+
+    ZkImport(CuratorFramework curator, int maxBatchBytes, ZkCompression compression) {
+        this.curator = curator;
+        this.maxBatchBytes = maxBatchBytes;
+        this.compression = compression;
+    }
+
+    /**
+     * Imports the given document into the matching user or system root.
+     */
+    static void importPreferences(InputStream in, ZkPreferences userRoot, ZkPreferences systemRoot)
+            throws IOException, InvalidPreferencesFormatException {
+        final Element root = parse(in);
+        final ZkPreferences prefs = "user".equals(root.getAttribute("type")) ? userRoot : systemRoot;
+        final Map<String, Map<String, String>> nodes = new LinkedHashMap<>();
+        collect(root, "/", nodes);
+        new ZkImport(prefs.curator, prefs.compression).apply(nodes);
+    }
+
+    static Element parse(InputStream in) throws IOException, InvalidPreferencesFormatException {
+        final Document doc;
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setIgnoringElementContentWhitespace(true);
+            factory.setIgnoringComments(true);
+            final DocumentBuilder builder = factory.newDocumentBuilder();
+            // never fetch the DTD (or anything else) from the network
+            builder.setEntityResolver((publicId, systemId) -> {
+                if (!PREFS_DTD_URI.equals(systemId)) {
+                    throw new SAXException("Invalid system identifier: " + systemId);
+                }
+                return new InputSource(new StringReader(""));
+            });
+            doc = builder.parse(new InputSource(in));
+        } catch (SAXException | ParserConfigurationException e) {
+            throw new InvalidPreferencesFormatException(e);
+        }
+        final Element preferences = doc.getDocumentElement();
+        if (!"preferences".equals(preferences.getTagName())) {
+            throw new InvalidPreferencesFormatException("Not a preferences document: " + preferences.getTagName());
+        }
+        final String version = preferences.getAttribute("EXTERNAL_XML_VERSION");
+        if (!version.isEmpty() && version.compareTo("1.0") > 0) {
+            throw new InvalidPreferencesFormatException("Preferences file format version " + version
+                    + " is not supported");
+        }
+        final List<Element> roots = elements(preferences, "root");
+        if (roots.size() != 1) {
+            throw new InvalidPreferencesFormatException("Expected a single root, found: " + roots.size());
+        }
+        return roots.get(0);
+    }
+
+    /**
+     * Collects the entries of a node and of its descendants, parents first, by absolute path.
+     */
+    static void collect(Element node, String path, Map<String, Map<String, String>> nodes)
+            throws InvalidPreferencesFormatException {
+        final Map<String, String> entries = nodes.computeIfAbsent(path, p -> new LinkedHashMap<>());
+        for (Element map : elements(node, "map")) {
+            for (Element entry : elements(map, "entry")) {
+                final String key = entry.getAttribute("key");
+                final String value = entry.getAttribute("value");
+                check(!key.isEmpty() && key.length() <= Preferences.MAX_KEY_LENGTH && key.indexOf('/') < 0,
+                        "Invalid key `%s` in %s", key, path);
+                check(value.length() <= Preferences.MAX_VALUE_LENGTH, "Value too long for key `%s` in %s", key, path);
+                entries.put(key, value);
+            }
+        }
+        for (Element child : elements(node, "node")) {
+            final String name = child.getAttribute("name");
+            check(!name.isEmpty() && name.length() <= Preferences.MAX_NAME_LENGTH && name.indexOf('/') < 0,
+                    "Invalid node name `%s` in %s", name, path);
+            collect(child, makePath(path, name), nodes);
+        }
+    }
+
+    private static List<Element> elements(Element parent, String tagName) {
+        final List<Element> elements = new ArrayList<>();
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element && tagName.equals(((Element) child).getTagName())) {
+                elements.add((Element) child);
+            }
+        }
+        return elements;
+    }
+
+    private static void check(boolean condition, String message, Object... args)
+            throws InvalidPreferencesFormatException {
+        if (!condition) {
+            throw new InvalidPreferencesFormatException(String.format(message, args));
+        }
+    }
+
+    /**
+     * Writes the given nodes and entries, keyed by absolute path (parents before children).
+     */
+    void apply(Map<String, Map<String, String>> nodes) {
+        final long start = System.nanoTime();
+        final List<String> nodePaths = new ArrayList<>(nodes.keySet());
+        nodePaths.remove("/");
+        final Map<String, byte[]> values = new LinkedHashMap<>();
+        nodes.forEach((path, entries) -> entries.forEach((key, value) -> values.put(makePath(path, key), bytes(value))));
+
+        try {
+            final Map<String, Stat> nodeStats = new ConcurrentHashMap<>();
+            final Map<String, byte[]> currentValues = new ConcurrentHashMap<>();
+            final Map<String, Stat> valueStats = new ConcurrentHashMap<>();
+            fetch(nodePaths, nodeStats, null);
+            fetch(values.keySet(), valueStats, currentValues);
+
+            for (String path : nodePaths) {
+                planNode(path, nodeStats.get(path));
+            }
+            for (Map.Entry<String, byte[]> value : values.entrySet()) {
+                final String path = value.getKey();
+                // a node created by this very import has no data yet
+                final boolean created = nodes.containsKey(path) && nodeStats.get(path) == null;
+                planValue(path, value.getValue(), created ? new byte[0] : currentValues.get(path),
+                        created ? new Stat() : valueStats.get(path));
+            }
+            endBatch();
+            commit();
+            deleteOverwrittenChunks();
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not import preferences", e);
+        }
+        logger.info("Imported {} values ({} unchanged) and {} new nodes in {} transactions in {} ms",
+                writtenValues, unchangedValues, createdNodes, batches.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Fetches the stats (and optionally the data) of the given paths, all in the background,
+     * with at most {@link #MAX_IN_FLIGHT} pending requests. Missing paths are mapped to nothing.
+     */
+    private void fetch(Collection<String> paths, Map<String, Stat> stats, Map<String, byte[]> data) throws Exception {
+        final long timeout = curator.getZookeeperClient().getConnectionTimeoutMs();
+        final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        final AtomicReference<KeeperException> failure = new AtomicReference<>();
+        for (String path : paths) {
+            if (!inFlight.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("Timed out fetching the current state of " + path);
+            }
+            final BackgroundCallback callback = (client, event) -> {
+                final Code code = Code.get(event.getResultCode());
+                if (code == Code.OK) {
+                    stats.put(path, event.getStat());
+                    if (data != null) {
+                        data.put(path, event.getData() != null ? event.getData() : new byte[0]);
+                    }
+                } else if (code != Code.NONODE) {
+                    failure.compareAndSet(null, KeeperException.create(code, path));
+                }
+                inFlight.release();
+            };
+            if (data != null) {
+                curator.getData().inBackground(callback).forPath(path);
+            } else {
+                curator.checkExists().inBackground(callback).forPath(path);
+            }
+        }
+        if (!inFlight.tryAcquire(MAX_IN_FLIGHT, timeout, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("Timed out fetching the current state of the imported preferences");
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private void planNode(String path, Stat stat) throws Exception {
+        if (isContainerNode(stat)) {
+            return;
+        }
+        final String markerPath = makePath(path, CHILD_MARKER);
+        final List<CuratorOp> ops = new ArrayList<>(3);
+        final List<CuratorOp> undo = new ArrayList<>(1);
+        if (stat == null) {
+            ops.add(curator.transactionOp().create().forPath(path, new byte[0]));
+            undo.add(curator.transactionOp().delete().forPath(path));
+            createdNodes++;
+        }
+        ops.add(curator.transactionOp().create().forPath(markerPath, CHILD_MARKER.getBytes()));
+        ops.add(curator.transactionOp().delete().forPath(markerPath));
+        add(ops, undo, 3 * (path.length() + CHILD_MARKER.length() + OP_OVERHEAD));
+    }
+
+    private void planValue(String path, byte[] value, byte[] current, Stat stat) throws Exception {
+        final ZkChunks.Manifest manifest = ZkChunks.Manifest.parse(current);
+        if (current != null && manifest == null && Arrays.equals(value, ZkCompression.decode(current))) {
+            unchangedValues++;
+            return;
+        }
+        if (manifest != null) {
+            overwrittenChunks.addAll(manifest.deleteOps(curator, path));
+        }
+        // the rollback restores the current data as it is stored
+        final byte[] bytes = compression.encode(value);
+        final int size = 2 * (path.length() + OP_OVERHEAD) + bytes.length + (current != null ? current.length : 0);
+        if (current == null) {
+            add(Collections.singletonList(curator.transactionOp().create().forPath(path, bytes)),
+                    Collections.singletonList(curator.transactionOp().delete().forPath(path)), size);
+        } else {
+            add(Collections.singletonList(curator.transactionOp().setData().withVersion(stat.getVersion()).forPath(path, bytes)),
+                    Collections.singletonList(curator.transactionOp().setData().withVersion(stat.getVersion() + 1).forPath(path, current)),
+                    size);
+        }
+        writtenValues++;
+    }
+
+    /**
+     * Adds a group of operations (to be applied together) to the current batch, starting a new batch if needed.
+     */
+    private void add(List<CuratorOp> ops, List<CuratorOp> undo, int size) {
+        if (batches.isEmpty() || batchBytes > 0 && batchBytes + size > maxBatchBytes) {
+            endBatch();
+            batches.add(new ArrayList<>());
+            rollbacks.add(new ArrayList<>());
+            batchBytes = 0;
+        }
+        batches.get(batches.size() - 1).addAll(ops);
+        // undo in reverse order, so that children are removed before their parents
+        rollbacks.get(rollbacks.size() - 1).addAll(0, undo);
+        batchBytes += size;
+    }
+
+    private void endBatch() {
+        if (!batches.isEmpty() && batches.get(batches.size() - 1).isEmpty()) {
+            batches.remove(batches.size() - 1);
+            rollbacks.remove(rollbacks.size() - 1);
+        }
+    }
+
+    private void commit() throws Exception {
+        for (int i = 0; i < batches.size(); i++) {
+            try {
+                curator.transaction().forOperations(batches.get(i));
+                logger.debug("Applied import batch {} of {}", i + 1, batches.size());
+            } catch (Exception e) {
+                logger.warn("Import batch {} of {} failed, rolling back the previous ones", i + 1, batches.size());
+                for (int j = i - 1; j >= 0; j--) {
+                    rollback(rollbacks.get(j));
+                }
+                throw new IllegalStateException("Preferences import failed and was rolled back", e);
+            }
+        }
+    }
+
+    private void deleteOverwrittenChunks() {
+        if (overwrittenChunks.isEmpty()) {
+            return;
+        }
+        try {
+            curator.transaction().forOperations(overwrittenChunks);
+        } catch (Exception e) {
+            logger.warn("Failed to remove the {} chunks of the overwritten values", overwrittenChunks.size(), e);
+        }
+    }
+
+    private void rollback(List<CuratorOp> undo) {
+        if (undo.isEmpty()) {
+            return;
+        }
+        try {
+            curator.transaction().forOperations(undo);
+        } catch (Exception e) {
+            // most likely a concurrent modification; undo whatever can still be undone
+            logger.warn("Rollback transaction failed, undoing its operations one by one", e);
+            for (CuratorOp op : undo) {
+                try {
+                    curator.transaction().forOperations(Collections.singletonList(op));
+                } catch (Exception opFailure) {
+                    logger.error("Could not roll back " + op.get().getPath() + " after a failed import", opFailure);
+                }
+            }
+        }
+    }
+}
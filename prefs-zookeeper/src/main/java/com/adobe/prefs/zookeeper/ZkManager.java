@@ -1,11 +1,27 @@
 package com.adobe.prefs.zookeeper;
 
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.BoundedExponentialBackoffRetry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.InvalidPreferencesFormatException;
+import java.util.prefs.Preferences;
+
 import static com.adobe.prefs.zookeeper.ZkUtils.namespace;
 
 /**
@@ -15,10 +31,16 @@ import static com.adobe.prefs.zookeeper.ZkUtils.namespace;
  * This is because the CuratorFramework instance is supposed to only be instantiated
  * once per application and the preferences mechanism (service loader) requires this
  * instance to be available when the factory class is loaded.
+ * When the preference roots are spread over several quorums (see {@link #curatorFramework(String)}),
+ * there is one such client per quorum.
  * <p>
  * The reason why this code is factored out of the {@link ZkPreferencesFactory}
- * is to provide this class as the single one in this package which is meant to be called directly by application code,
- * since everything else in this package is just SPI implementation for Preferences.
+ * is to provide this class as the entry point of this package for application code,
+ * since the factory and the preferences themselves are just SPI implementation for Preferences.
+ * The other public types are either obtained from this class ({@link ZkEventDispatcher}, {@link ZkSnapshot},
+ * {@link ZkWarmUp}, {@link ZkCacheStats} and {@link ZkMetrics}, also exposed over JMX as {@link ZkMetricsMXBean})
+ * or implemented by the preferences, for the application to cast them to ({@link AsyncPreferences},
+ * {@link VersionedPreferences} and {@link StreamPreferences}).
  */
 public final class ZkManager {
     private ZkManager() {
@@ -26,53 +48,362 @@ public final class ZkManager {
 
     private static final Logger logger = LoggerFactory.getLogger(ZkManager.class);
 
+    private static volatile ZkQuorums quorums;
     private static volatile CuratorFramework curatorFramework;
+    private static volatile ZkEventDispatcher eventDispatcher;
+    private static volatile ZkWarmUp warmUp = ZkWarmUp.none();
+    private static final ZkCacheStats cacheStats = new ZkCacheStats();
+    private static final ZkMetrics metrics = ZkMetrics.registered();
 
     /**
      * Shares the Zookeeper client used by the Preferences integration with the application code.
      * However, this method returns a facade of the original curator, so that clients cannot shut it down
      * or otherwise modify it.
      *
-     * @return a singleton curator framework instance
+     * @return a singleton curator framework instance, connected to the default quorum ({@code zk.quorum})
      */
     public static CuratorFramework curatorFramework() {
         if (curatorFramework != null) {
             return curatorFramework;
         } else synchronized (ZkManager.class) {
             if (curatorFramework == null) {
+                curatorFramework = quorums().client("/").usingNamespace(namespace("/"));
+            }
+            return curatorFramework;
+        }
+
+    }
+
+    /**
+     * Same as {@link #curatorFramework()}, but connected to the quorum storing the given path,
+     * when the preference roots are spread over several quorums.
+     * <p>
+     * The roots are routed to quorums by the longest matching prefix of their path, as configured
+     * with {@code zk.quorum.routes}, a list of semicolon separated {@code prefix=quorum} pairs
+     * (e.g. {@code -Dzk.quorum.routes=/prefs/sys=zk1:2181,zk2:2181;/prefs/usr=zk3:2181}), while the paths
+     * not matching any prefix are stored in {@code zk.quorum}. The roots of a quorum share its single client,
+     * as the consistency of a root relies on the ordering guarantees of a single zookeeper session.
+     *
+     * @param path an absolute zookeeper path
+     * @return a facade of the client of the quorum storing the path
+     */
+    public static CuratorFramework curatorFramework(String path) {
+        return quorums().client(path).usingNamespace(namespace("/"));
+    }
+
+    private static ZkQuorums quorums() {
+        if (quorums != null) {
+            return quorums;
+        } else synchronized (ZkManager.class) {
+            if (quorums == null) {
                 final String quorum = System.getProperty("zk.quorum", "localhost");
-                final int sessionTimeout = Integer.parseInt(
-                        System.getProperty("zk.session.timeout", "30000"));
-                final int connectionTimeout = Integer.parseInt(
-                        System.getProperty("zk.connection.timeout", "15000"));
-                final int initialDelay = Integer.parseInt(
-                        System.getProperty("zk.retry.initialDelay", "10"));
-                final int maxDelay = Integer.parseInt(
-                        System.getProperty("zk.retry.maxDelay", "200"));
-                final int maxCount = Integer.parseInt(
-                        System.getProperty("zk.retry.maxCount", "10"));
-
-
-                logger.info("Initializing the Zookeeper client for quorum: {}", quorum);
-
-                final CuratorFramework curator = CuratorFrameworkFactory.newClient(quorum, sessionTimeout, connectionTimeout,
-                        new BoundedExponentialBackoffRetry(initialDelay, maxDelay, maxCount));
-                curator.start();
-                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                    logger.info("Shutting down the Zookeeper client...");
-                    curator.close();
-                }));
-
-                curatorFramework = curator.usingNamespace(namespace("/"));
+                final Map<String, String> routes = ZkQuorums.routes(System.getProperty("zk.quorum.routes", ""));
+                quorums = new ZkQuorums(quorum, routes, ZkManager::newClient);
+                logger.info("Zookeeper clients configured: {}", quorums);
+            }
+            return quorums;
+        }
+    }
 
+    private static CuratorFramework newClient(String quorum) {
+        final int sessionTimeout = Integer.parseInt(
+                System.getProperty("zk.session.timeout", "30000"));
+        final int connectionTimeout = Integer.parseInt(
+                System.getProperty("zk.connection.timeout", "15000"));
+        final int initialDelay = Integer.parseInt(
+                System.getProperty("zk.retry.initialDelay", "10"));
+        final int maxDelay = Integer.parseInt(
+                System.getProperty("zk.retry.maxDelay", "200"));
+        final int maxCount = Integer.parseInt(
+                System.getProperty("zk.retry.maxCount", "10"));
+
+        final CuratorFramework curator = CuratorFrameworkFactory.newClient(quorum, sessionTimeout, connectionTimeout,
+                new BoundedExponentialBackoffRetry(initialDelay, maxDelay, maxCount));
+        curator.getZookeeperClient().setTracerDriver(metrics.tracer());
+        curator.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("Shutting down the Zookeeper client of quorum {}...", quorum);
+            curator.close();
+        }));
+        return curator;
+    }
+
+    /**
+     * Returns the dispatcher that delivers the preference and node change events to the listeners,
+     * mainly in order to monitor its queue and the time spent by the listeners.
+     * <p>
+     * The events are delivered by a pool of {@code prefs.zk.events.threads} daemon threads (2 by default,
+     * 0 meaning the events are delivered in the zookeeper event threads) and at most
+     * {@code prefs.zk.events.capacity} events of each node (1000 by default) can wait for delivery.
+     * Bursts of updates of the same preference are coalesced within {@code prefs.zk.events.coalesce_ms}
+     * milliseconds (0 by default, i.e. every update is delivered), unless overridden for a node
+     * with {@link #coalesceUpdates(Preferences, long, TimeUnit)}.
+     *
+     * @return a singleton event dispatcher
+     */
+    public static ZkEventDispatcher eventDispatcher() {
+        if (eventDispatcher != null) {
+            return eventDispatcher;
+        } else synchronized (ZkManager.class) {
+            if (eventDispatcher == null) {
+                final int threads = Integer.parseInt(
+                        System.getProperty("prefs.zk.events.threads", "2"));
+                final int capacity = Integer.parseInt(
+                        System.getProperty("prefs.zk.events.capacity", "1000"));
+                final long coalesceMillis = Long.parseLong(
+                        System.getProperty("prefs.zk.events.coalesce_ms", "0"));
+
+                logger.info("Initializing the preferences event dispatcher with {} threads", threads);
+
+                final ExecutorService executor = threads > 0 ? Executors.newFixedThreadPool(threads,
+                        new ThreadFactoryBuilder().setNameFormat("zk-prefs-events-%d").setDaemon(true).build()) : null;
+                eventDispatcher = new ZkEventDispatcher(executor, capacity, coalesceMillis);
             }
-            return curatorFramework;
+            return eventDispatcher;
+        }
+    }
+
+    /**
+     * Replaces the default event dispatcher, e.g. with one delivering the events with an executor of the application:
+     * <pre>
+     *     ZkManager.eventDispatcher(new ZkEventDispatcher(executor, 1000, 0));
+     * </pre>
+     * It must be called before the preferences are first used, as every preference node keeps the dispatcher
+     * it was created with.
+     *
+     * @param dispatcher the dispatcher delivering the events of all the preference nodes
+     * @throws IllegalStateException if the event dispatcher is already in use
+     */
+    public static void eventDispatcher(ZkEventDispatcher dispatcher) {
+        Preconditions.checkNotNull(dispatcher, "Null dispatcher");
+        synchronized (ZkManager.class) {
+            if (eventDispatcher != null) {
+                throw new IllegalStateException("The event dispatcher is already in use: " + eventDispatcher);
+            }
+            eventDispatcher = dispatcher;
+        }
+    }
+
+    /**
+     * Returns the statistics of the value caches of the preference nodes ({@code prefs.zk.cache.values}),
+     * mainly in order to monitor how many reads of missing keys are answered from memory.
+     *
+     * @return the statistics shared by all the preference nodes
+     */
+    public static ZkCacheStats cacheStats() {
+        return cacheStats;
+    }
+
+    /**
+     * Returns the latencies of the preference operations and of the zookeeper requests they send,
+     * along with gauges of the live nodes, watches and listeners; these are also available over JMX.
+     *
+     * @return the metrics shared by all the preference nodes and zookeeper clients
+     */
+    public static ZkMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Coalesces the bursts of updates of the preferences of a single node: after an update is received,
+     * the listeners of the node are only notified of the latest value seen by the end of the given time window.
+     * A removal of the preference discards the pending update.
+     *
+     * @param node a zookeeper preferences node
+     * @param window the coalescing window; 0 notifies every update, while a negative value restores the default
+     * @param unit the time unit of the window
+     */
+    public static void coalesceUpdates(Preferences node, long window, TimeUnit unit) {
+        Preconditions.checkArgument(node instanceof ZkPreferences, "Not a zookeeper preferences node: %s", node);
+        ((ZkPreferences) node).coalesceUpdates(window < 0 ? -1 : unit.toMillis(window));
+    }
+
+    /**
+     * Imports an XML document (in the format of {@link Preferences#importPreferences(InputStream)}) in bulk:
+     * the current values are read in a single pipelined pass, unchanged values are skipped and the changes are written
+     * in as few zookeeper transactions as possible. A failed import is rolled back.
+     * <p>
+     * When the preferences are not stored in zookeeper, this is the same as {@link Preferences#importPreferences}.
+     *
+     * @param in the XML document
+     * @throws IOException if reading from the stream fails
+     * @throws InvalidPreferencesFormatException if the document is not a valid preferences document
+     * @throws IllegalStateException if the document could not be written to zookeeper
+     */
+    public static void importPreferences(InputStream in) throws IOException, InvalidPreferencesFormatException {
+        final Preferences userRoot = Preferences.userRoot();
+        final Preferences systemRoot = Preferences.systemRoot();
+        if (userRoot instanceof ZkPreferences && systemRoot instanceof ZkPreferences) {
+            ZkImport.importPreferences(in, (ZkPreferences) userRoot, (ZkPreferences) systemRoot);
+        } else {
+            Preferences.importPreferences(in);
         }
+    }
+
+    /**
+     * Exports a node (without its descendants) in the format of {@link Preferences#exportNode(OutputStream)},
+     * streaming the document as the values are read from zookeeper.
+     * <p>
+     * When the preferences are not stored in zookeeper, this is the same as {@link Preferences#exportNode}.
+     *
+     * @param node the node to export
+     * @param os the stream to write the XML document to
+     * @throws IOException if writing to the stream fails
+     * @throws BackingStoreException if the preferences could not be read
+     */
+    public static void exportNode(Preferences node, OutputStream os) throws IOException, BackingStoreException {
+        if (node instanceof ZkPreferences) {
+            ZkExport.export((ZkPreferences) node, os, false);
+        } else {
+            node.exportNode(os);
+        }
+    }
+
+    /**
+     * Exports a node and all its descendants in the format of {@link Preferences#exportSubtree(OutputStream)},
+     * streaming the document as the tree is walked with pipelined zookeeper reads,
+     * so the memory use does not depend on the size of the subtree.
+     * <p>
+     * When the preferences are not stored in zookeeper, this is the same as {@link Preferences#exportSubtree}.
+     *
+     * @param node the root of the subtree to export
+     * @param os the stream to write the XML document to
+     * @throws IOException if writing to the stream fails
+     * @throws BackingStoreException if the preferences could not be read
+     */
+    public static void exportSubtree(Preferences node, OutputStream os) throws IOException, BackingStoreException {
+        if (node instanceof ZkPreferences) {
+            ZkExport.export((ZkPreferences) node, os, true);
+        } else {
+            node.exportSubtree(os);
+        }
+    }
+
+    /**
+     * Reads a node and all its descendants, along with the versions of their values, in a single pass:
+     * the subtree is walked breadth-first with pipelined zookeeper reads, at most
+     * {@code prefs.zk.snapshot.concurrency} (1000 by default) of them being in flight at once.
+     * <p>
+     * When the preferences are not stored in zookeeper, the subtree is walked through the {@link Preferences} API.
+     *
+     * @param node the root of the subtree to read
+     * @return an immutable snapshot of the subtree
+     * @throws BackingStoreException if the preferences could not be read
+     */
+    public static ZkSnapshot snapshot(Preferences node) throws BackingStoreException {
+        return snapshot(node, Integer.parseInt(System.getProperty("prefs.zk.snapshot.concurrency", "1000")));
+    }
+
+    /**
+     * Same as {@link #snapshot(Preferences)}, with an explicit limit of the zookeeper reads in flight.
+     *
+     * @param node the root of the subtree to read
+     * @param concurrency the maximum number of concurrent zookeeper reads
+     * @return an immutable snapshot of the subtree
+     * @throws BackingStoreException if the preferences could not be read
+     */
+    public static ZkSnapshot snapshot(Preferences node, int concurrency) throws BackingStoreException {
+        Preconditions.checkArgument(concurrency > 0, "Invalid concurrency: %s", concurrency);
+        if (node instanceof ZkPreferences) {
+            return ZkSnapshot.read((ZkPreferences) node, concurrency, true);
+        } else {
+            return ZkSnapshot.walk(node, true);
+        }
+    }
+
+    /**
+     * Reads the preferences of a node, along with the names of its children, in a single pass:
+     * the children are listed and all read at once with pipelined zookeeper reads, rather than
+     * one round trip per key as with {@link Preferences#keys()} and {@link Preferences#get(String, String)}.
+     * <p>
+     * When the preferences are not stored in zookeeper, the node is read through the {@link Preferences} API.
+     *
+     * @param node the node to read
+     * @return an immutable snapshot of the node, whose {@link ZkSnapshot#childrenNames(String)} are the ones of the node
+     * @throws BackingStoreException if the preferences could not be read
+     */
+    public static ZkSnapshot snapshotNode(Preferences node) throws BackingStoreException {
+        final int concurrency = Integer.parseInt(System.getProperty("prefs.zk.snapshot.concurrency", "1000"));
+        if (node instanceof ZkPreferences) {
+            return ZkSnapshot.read((ZkPreferences) node, concurrency, false);
+        } else {
+            return ZkSnapshot.walk(node, false);
+        }
+    }
+
+    /**
+     * Computes a stamp of the preferences of a node and of the names of its children, which changes whenever
+     * any of them does (e.g. to tag the representations of the node, so that clients can tell whether it changed).
+     * The zookeeper nodes are stamped from the versions of their znodes, without reading any value:
+     * the {@code cversion} of the node, and the {@code mzxid} and versions of its keys and children.
+     * <p>
+     * When the preferences are not stored in zookeeper, the stamp is computed from the content of the node.
+     *
+     * @param node the node to stamp
+     * @return an opaque string, equal for two stamps of the same state of the node
+     * @throws BackingStoreException if the preferences could not be read
+     */
+    public static String stamp(Preferences node) throws BackingStoreException {
+        if (node instanceof ZkPreferences) {
+            return ((ZkPreferences) node).stamp();
+        }
+        final ZkSnapshot snapshot = ZkSnapshot.walk(node, false);
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (String path : snapshot.nodePaths()) {
+            hasher.putInt(path.length()).putUnencodedChars(path);
+            snapshot.entries(path).forEach((key, entry) -> hasher
+                    .putInt(key.length()).putUnencodedChars(key)
+                    .putInt(entry.value().length()).putUnencodedChars(entry.value()));
+        }
+        return hasher.hash().toString();
+    }
 
+    /**
+     * Reports the progress of prefetching the subtrees listed in the {@code prefs.zk.warmup.user}
+     * and {@code prefs.zk.warmup.system} properties, which starts as soon as the preferences are first used
+     * (e.g. by calling {@link Preferences#userRoot()} at startup), so that traffic can be held back until it is ready.
+     *
+     * @return the warm-up of the zookeeper preferences; one with nothing to prefetch if they are not in use
+     */
+    public static ZkWarmUp warmUp() {
+        return warmUp;
     }
 
+    static void warmUp(ZkWarmUp warmUp) {
+        ZkManager.warmUp = warmUp;
+    }
+
+    /**
+     * Reads a binary value without copying it, which matters for large values read very often:
+     * when values are cached ({@code prefs.zk.cache.values}), the buffer is a read-only view of the cached value,
+     * and a Base64 encoded value ({@code prefs.zk.binary.base64_encoded}) is only decoded once per version.
+     * <p>
+     * When the preferences are not stored in zookeeper, this wraps {@link Preferences#getByteArray}.
+     *
+     * @param node the preferences node
+     * @param key the key of the binary value
+     * @return a read-only buffer with the value, or null if the key is missing or its value is not valid Base64
+     */
+    public static ByteBuffer getByteBuffer(Preferences node, String key) {
+        if (node instanceof ZkPreferences) {
+            return ((ZkPreferences) node).getByteBuffer(key);
+        }
+        final byte[] value = node.getByteArray(key, null);
+        return value != null ? ByteBuffer.wrap(value).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * @return a client of the quorum storing the given root, using the root as its namespace
+     */
     static CuratorFramework curatorFacade(final String rootPath) {
-        return curatorFramework().usingNamespace(namespace(rootPath));
+        return quorums().client(rootPath).usingNamespace(namespace(rootPath));
+    }
+
+    /**
+     * @return the quorum storing the given root
+     */
+    static String quorum(String rootPath) {
+        return quorums().quorum(rootPath);
     }
 
 }
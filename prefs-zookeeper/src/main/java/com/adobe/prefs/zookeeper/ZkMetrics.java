@@ -0,0 +1,355 @@
+package com.adobe.prefs.zookeeper;
+
+import org.apache.curator.drivers.TracerDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToIntFunction;
+
+/**
+ * Measures what the preferences cost in zookeeper terms: the latency of every SPI method of the preference nodes
+ * (named {@code spi.*}, e.g. {@code spi.get}) and of every zookeeper request sent by the curator clients
+ * (named {@code curator.*}, e.g. {@code curator.getData}, or {@code curator.getData.async} for background requests),
+ * along with gauges of the live nodes, of those watching their children and of the registered listeners.
+ * The compression of the large values (see {@link ZkCompression}) is also measured: its CPU time (as the
+ * {@code compression.*} operations) and the compression ratio.
+ * <p>
+ * The latencies are counted in a histogram of power-of-two buckets (from 1 microsecond up), so the percentiles are
+ * approximate, within a factor of two. Recording a latency only takes a few atomic increments.
+ * <p>
+ * An instance is shared by all the preference nodes and clients and can be obtained with {@link ZkManager#metrics()};
+ * the gauges and every operation are also registered as MXBeans in the {@value #DOMAIN} JMX domain.
+ */
+public final class ZkMetrics implements ZkMetricsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(ZkMetrics.class);
+    static final String DOMAIN = "com.adobe.prefs.zookeeper";
+    private static final int BUCKETS = 24;
+
+    /**
+     * The JMX view of an {@link Operation}.
+     */
+    public interface OperationMXBean {
+        long getCount();
+
+        long getErrorCount();
+
+        double getTotalMillis();
+
+        double getMeanMillis();
+
+        double getMaxMillis();
+
+        double get50thPercentileMillis();
+
+        double get99thPercentileMillis();
+    }
+
+    /**
+     * The latencies and the number of failures of an operation.
+     */
+    public static final class Operation implements OperationMXBean {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        // latencies up to 2^i microseconds (the last bucket holding the longer ones)
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private Operation() {
+        }
+
+        /**
+         * Records the latency of an operation started at the given {@link System#nanoTime()}.
+         */
+        void record(long startNanos) {
+            record(startNanos, false);
+        }
+
+        void record(long startNanos, boolean failed) {
+            recordNanos(System.nanoTime() - startNanos, failed);
+        }
+
+        void recordNanos(long nanos, boolean failed) {
+            count.incrementAndGet();
+            if (failed) {
+                errors.incrementAndGet();
+            }
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, micros - 1))));
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+
+        @Override
+        public long getErrorCount() {
+            return errors.get();
+        }
+
+        @Override
+        public double getTotalMillis() {
+            return millis(totalNanos.get());
+        }
+
+        @Override
+        public double getMeanMillis() {
+            final long count = this.count.get();
+            return count > 0 ? millis(totalNanos.get()) / count : 0;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return millis(maxNanos.get());
+        }
+
+        @Override
+        public double get50thPercentileMillis() {
+            return getPercentileMillis(0.5);
+        }
+
+        @Override
+        public double get99thPercentileMillis() {
+            return getPercentileMillis(0.99);
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return the upper bound of the latency bucket holding the given quantile, or 0 if nothing was recorded
+         */
+        public double getPercentileMillis(double quantile) {
+            final long count = this.count.get();
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen > 0 && seen >= quantile * count) {
+                    return Math.min(bucketBoundMillis(i), getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+
+        /**
+         * @return the number of latencies up to each bucket bound, in milliseconds
+         * (i.e. cumulative, as in a Prometheus histogram), the last bound being infinite
+         */
+        public NavigableMap<Double, Long> histogram() {
+            final NavigableMap<Double, Long> histogram = new TreeMap<>();
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                histogram.put(bucketBoundMillis(i), seen);
+            }
+            return histogram;
+        }
+
+        private static double bucketBoundMillis(int bucket) {
+            return bucket < BUCKETS - 1 ? (1L << bucket) / 1000.0 : Double.POSITIVE_INFINITY;
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + ", errors=" + getErrorCount() + ", mean=" + getMeanMillis()
+                    + "ms, p99=" + get99thPercentileMillis() + "ms, max=" + getMaxMillis() + "ms";
+        }
+    }
+
+    private final ConcurrentNavigableMap<String, Operation> operations = new ConcurrentSkipListMap<>();
+    // the nodes that were not garbage collected, some of which may have been removed or closed already
+    private final Set<ZkPreferences> nodes = Collections.newSetFromMap(new WeakHashMap<>());
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final MBeanServer mbeanServer;
+
+    ZkMetrics(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+        register("type=ZkMetrics", this);
+    }
+
+    /**
+     * @return metrics registered with the platform MBean server
+     */
+    static ZkMetrics registered() {
+        return new ZkMetrics(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    private void register(String name, Object mbean) {
+        if (mbeanServer == null) {
+            return;
+        }
+        try {
+            final ObjectName objectName = new ObjectName(DOMAIN + ":" + name);
+            if (!mbeanServer.isRegistered(objectName)) {
+                mbeanServer.registerMBean(mbean, objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to register the MBean {}", name, e);
+        }
+    }
+
+    /**
+     * @return the metrics of an operation, created (and registered) on first use
+     */
+    Operation operation(String name) {
+        final Operation operation = operations.get(name);
+        return operation != null ? operation : operations.computeIfAbsent(name, n -> {
+            final Operation created = new Operation();
+            register("type=Operation,name=" + ObjectName.quote(n), created);
+            return created;
+        });
+    }
+
+    /**
+     * @return the operations measured so far, by name
+     */
+    public Map<String, Operation> getOperations() {
+        return Collections.unmodifiableMap(operations);
+    }
+
+    void nodeCreated(ZkPreferences node) {
+        synchronized (nodes) {
+            nodes.add(node);
+        }
+    }
+
+    private int sum(ToIntFunction<ZkPreferences> gauge) {
+        final List<ZkPreferences> nodes;
+        synchronized (this.nodes) {
+            nodes = new ArrayList<>(this.nodes);
+        }
+        return nodes.stream().mapToInt(gauge).sum();
+    }
+
+    /**
+     * @return the number of preference nodes neither removed nor closed
+     */
+    @Override
+    public int getNodeCount() {
+        return sum(node -> node.isLive() ? 1 : 0);
+    }
+
+    /**
+     * @return the number of nodes watching their children (each with its own children cache, unless in tree cache mode)
+     */
+    @Override
+    public int getWatchCount() {
+        return sum(node -> node.isWatching() ? 1 : 0);
+    }
+
+    /**
+     * @return the number of preference and node change listeners registered with the nodes
+     */
+    @Override
+    public int getListenerCount() {
+        return sum(ZkPreferences::listenerCount);
+    }
+
+    void compressed(int uncompressedBytes, int compressedBytes, long startNanos) {
+        operation("compression.compress").record(startNanos);
+        this.uncompressedBytes.addAndGet(uncompressedBytes);
+        this.compressedBytes.addAndGet(compressedBytes);
+    }
+
+    void decompressed(long startNanos) {
+        operation("compression.decompress").record(startNanos);
+    }
+
+    /**
+     * @return the size of the values that were compressed (see {@link ZkCompression}), before compression
+     */
+    @Override
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * @return the size of the values that were compressed, as stored (those that didn't shrink being stored as they are)
+     */
+    @Override
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * @return the uncompressed to stored size ratio of the values that were compressed, or 1 if none was
+     */
+    @Override
+    public double getCompressionRatio() {
+        final long compressed = compressedBytes.get();
+        return compressed > 0 ? (double) uncompressedBytes.get() / compressed : 1;
+    }
+
+    /**
+     * @return a tracer recording the latencies of the zookeeper requests sent by a curator client
+     */
+    TracerDriver tracer() {
+        return new TracerDriver() {
+            @Override
+            public void addTrace(String name, long time, TimeUnit unit) {
+                operation(curatorOperation(name)).recordNanos(unit.toNanos(time), false);
+            }
+
+            @Override
+            public void addCount(String name, int increment) {
+                // connection events, not requests
+            }
+        };
+    }
+
+    /**
+     * Maps the curator trace names (e.g. {@code GetDataBuilderImpl-Foreground}) to operation names.
+     */
+    static String curatorOperation(String trace) {
+        final int separator = trace.indexOf('-');
+        final String builder = separator > 0 ? trace.substring(0, separator) : trace;
+        final String suffix = trace.endsWith("-Background") ? ".async" : "";
+        switch (builder) {
+            case "ExistsBuilderImpl":
+                return "curator.checkExists" + suffix;
+            case "GetDataBuilderImpl":
+                return "curator.getData" + suffix;
+            case "CreateBuilderImpl":
+                return "curator.create" + suffix;
+            case "SetDataBuilderImpl":
+                return "curator.setData" + suffix;
+            case "DeleteBuilderImpl":
+                return "curator.delete" + suffix;
+            case "GetChildrenBuilderImpl":
+                return "curator.getChildren" + suffix;
+            case "CuratorMultiTransactionImpl":
+                return "curator.transaction" + suffix;
+            default:
+                return "curator." + trace;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ZkMetrics{nodes=" + getNodeCount() + ", watches=" + getWatchCount()
+                + ", listeners=" + getListenerCount() + ", compressionRatio=" + getCompressionRatio()
+                + ", operations=" + operations + "}";
+    }
+}
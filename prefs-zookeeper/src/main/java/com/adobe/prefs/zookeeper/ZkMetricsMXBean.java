@@ -0,0 +1,19 @@
+package com.adobe.prefs.zookeeper;
+
+/**
+ * The JMX view of the {@link ZkMetrics} gauges and compression statistics.
+ */
+public interface ZkMetricsMXBean {
+
+    int getNodeCount();
+
+    int getWatchCount();
+
+    int getListenerCount();
+
+    long getUncompressedBytes();
+
+    long getCompressedBytes();
+
+    double getCompressionRatio();
+}
@@ -3,27 +3,58 @@ package com.adobe.prefs.zookeeper;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.transaction.CuratorOp;
 import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.framework.recipes.cache.PathChildrenCache;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.BadVersionException;
+import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.KeeperException.NoNodeException;
 import org.apache.zookeeper.KeeperException.NodeExistsException;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 import java.util.prefs.AbstractPreferences;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.NodeChangeEvent;
@@ -35,7 +66,10 @@ import java.util.stream.Stream;
 
 import static com.adobe.prefs.zookeeper.ZkUtils.basename;
 import static com.adobe.prefs.zookeeper.ZkUtils.bytes;
-import static com.adobe.prefs.zookeeper.ZkUtils.string;
+import static com.adobe.prefs.zookeeper.ZkUtils.inBackground;
+import static org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent.Type.CONNECTION_LOST;
+import static org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent.Type.CONNECTION_RECONNECTED;
+import static org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent.Type.CONNECTION_SUSPENDED;
 import static org.apache.curator.utils.ZKPaths.makePath;
 import static org.apache.zookeeper.KeeperException.NotEmptyException;
 
@@ -51,49 +85,150 @@ import static org.apache.zookeeper.KeeperException.NotEmptyException;
  *
  * However, both false positives and negatives are still possible.
  *
+ * When created with {@code cachedValues}, the node starts watching its children on the first read
+ * and from then on answers repeated reads from memory. The cached values are refreshed by local writes and by the
+ * zookeeper watch events, so (just like the notifications) they are only <em>eventually</em> consistent
+ * with changes made by other clients. The cached values are read without taking the node lock.
+ * Keys found missing are remembered as well (as tombstones), until the watch reports their creation,
+ * so that repeatedly looking up absent keys (e.g. to fall back to defaults) does not go to zookeeper every time.
+ *
+ * Large values may be stored compressed (see {@link ZkCompression}), as configured when the root node is created;
+ * the values are always read in either form.
+ * Values too large for a single znode can be read and written as streams (see {@link StreamPreferences}),
+ * in which case they are stored in chunks (see {@link ZkChunks}).
+ * The keys can also be written conditionally, on the version of their znodes (see {@link VersionedPreferences}).
  */
-class ZkPreferences extends AbstractPreferences implements PathChildrenCacheListener, Closeable {
+class ZkPreferences extends AbstractPreferences
+        implements AsyncPreferences, StreamPreferences, VersionedPreferences, PathChildrenCacheListener, Closeable {
     private static final Logger logger = LoggerFactory.getLogger(ZkPreferences.class);
-    private static final String CHILD_MARKER = "_PrefX_0ca1b97f-1a85-4e28-a692-dd8242b15cbe";
+    static final String CHILD_MARKER = "_PrefX_0ca1b97f-1a85-4e28-a692-dd8242b15cbe";
+    // shared by all the nodes, so that they take no memory for locking: writes share their node
+    // (and only exclude each other per key), while removing it excludes them all
+    private static final Striped<ReadWriteLock> NODE_LOCKS = Striped.readWriteLock(64);
+    private static final Striped<Lock> KEY_LOCKS = Striped.lock(256);
+    private static final int MAX_NOTIFIED_CHILDREN = 256;
+    private static final ZkMetrics.Operation GET = ZkManager.metrics().operation("spi.get");
+    private static final ZkMetrics.Operation PUT = ZkManager.metrics().operation("spi.put");
+    private static final ZkMetrics.Operation REMOVE = ZkManager.metrics().operation("spi.remove");
+    private static final ZkMetrics.Operation KEYS = ZkManager.metrics().operation("spi.keys");
+    private static final ZkMetrics.Operation CHILDREN_NAMES = ZkManager.metrics().operation("spi.childrenNames");
+    private static final ZkMetrics.Operation CHILD = ZkManager.metrics().operation("spi.child");
+    private static final ZkMetrics.Operation REMOVE_NODE = ZkManager.metrics().operation("spi.removeNode");
+    private static final ZkMetrics.Operation FLUSH = ZkManager.metrics().operation("spi.flush");
+    private static final ZkMetrics.Operation STAMP = ZkManager.metrics().operation("stamp");
 
     final CuratorFramework curator;
+    // how the values are stored, shared by the whole tree
+    final ZkCompression compression;
 
     private final boolean userNode;
     private final boolean encodedBinary;
+    private final boolean cachedValues;
 
-    private final PathChildrenCache pcc;
+    private final Function<String, ZkWatch> watches;
+    private final ZkEventDispatcher dispatcher;
+    private final ZkEventDispatcher.Lane events;
+    private volatile ZkWatch watch;
+    private final ConcurrentMap<String, ZkValue> values = new ConcurrentHashMap<>();
+    private volatile boolean watching;
+    private volatile boolean closed;
     private final Set<NodeChangeListener> nodeChangeListeners = ConcurrentHashMap.newKeySet();
     private final Set<PreferenceChangeListener> preferenceChangeListeners = ConcurrentHashMap.newKeySet();
+    // keys removed locally, whose removal has not been notified by the watch yet
+    private final Set<String> removedKeys = ConcurrentHashMap.newKeySet();
+    // children created locally, whose addition has not been notified by the watch yet
+    private final Set<String> addedChildren = new HashSet<>();
+    // children created and removed locally before the watch notified them, by `czxid`; the watch may never see them,
+    // so only the latest ones are kept, as the watch is long past the older ones
+    private final Map<String, Long> notifiedChildren = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_NOTIFIED_CHILDREN;
+        }
+    };
+    // latest values of the preferences updated within the coalescing window, waiting to be notified
+    private final Map<String, String> pendingUpdates = new HashMap<>();
+    // per key, the coalesced update being notified, until it's delivered or superseded by a removal or re-creation
+    private final Map<String, Object> pendingDeliveries = new HashMap<>();
+    // coalescing window of this node; negative for the default of the dispatcher
+    private volatile long coalesceMillis = -1;
+    // last asynchronous write of each key still in progress, which the next writes of the key wait for
+    private final ConcurrentMap<String, CompletableFuture<Void>> pendingWrites = new ConcurrentHashMap<>();
+    private volatile boolean deleted;
+    // whether this node is known to store values in chunks, which are only removed along with a value read first
+    private volatile boolean chunked;
+    private final ZkCacheStats stats = ZkManager.cacheStats();
 
 
     /**
-     * Creates a root node.
-     * This is the only constructor visible from outside this class.
+     * Creates a root node, with each watched node using its own {@link PathChildrenCache}.
+     * @param curator
+     * @param encodedBinary
+     * @param cachedValues
+     */
+    ZkPreferences(CuratorFramework curator, boolean encodedBinary, boolean userNode, boolean cachedValues) {
+        this(curator, encodedBinary, userNode, cachedValues, path -> ZkWatch.pathChildrenCache(curator, path));
+    }
+
+    /**
+     * Creates a root node, notifying the listeners through the shared {@link ZkManager#eventDispatcher()}.
      * @param curator
      * @param encodedBinary
+     * @param cachedValues
+     * @param watches provides the watch of each node, when it starts watching its children
      */
-    ZkPreferences(CuratorFramework curator, boolean encodedBinary, boolean userNode) {
-        this(curator, null, "", encodedBinary, userNode);
+    ZkPreferences(CuratorFramework curator, boolean encodedBinary, boolean userNode, boolean cachedValues,
+                  Function<String, ZkWatch> watches) {
+        this(curator, encodedBinary, userNode, cachedValues, watches, ZkManager.eventDispatcher());
     }
 
     /**
-     * Creates a child node.
+     * Creates a root node.
+     * These are the only constructors visible from outside this class.
      * @param curator
+     * @param encodedBinary
+     * @param cachedValues
+     * @param watches provides the watch of each node, when it starts watching its children
+     * @param dispatcher delivers the events of all the nodes to their listeners
+     */
+    ZkPreferences(CuratorFramework curator, boolean encodedBinary, boolean userNode, boolean cachedValues,
+                  Function<String, ZkWatch> watches, ZkEventDispatcher dispatcher) {
+        this(curator, null, "", encodedBinary, userNode, cachedValues, watches, dispatcher, false);
+    }
+
+    /**
+     * Creates a child node, sharing the settings of its parent.
+     * A <em>detached</em> one is neither cached by its parent nor written to zookeeper,
+     * so it can stand for a node that has already been removed.
      * @param parent
      * @param name
-     * @param encodedBinary
+     * @param detached
      */
+    private ZkPreferences(ZkPreferences parent, String name, boolean detached) {
+        this(parent.curator, parent, name, parent.encodedBinary, parent.userNode, parent.cachedValues,
+                parent.watches, parent.dispatcher, detached);
+    }
+
     private ZkPreferences(CuratorFramework curator, ZkPreferences parent, String name,
-                          boolean encodedBinary, boolean userNode) {
+                          boolean encodedBinary, boolean userNode, boolean cachedValues,
+                          Function<String, ZkWatch> watches, ZkEventDispatcher dispatcher, boolean detached) {
         super(parent, name);
         this.curator = curator;
+        this.compression = parent != null ? parent.compression : ZkCompression.configured();
         this.userNode = userNode;
         this.encodedBinary = encodedBinary;
-        pcc = new PathChildrenCache(curator, absolutePath(), true);
+        this.cachedValues = cachedValues;
+        this.watches = watches;
+        this.dispatcher = dispatcher;
+        this.events = dispatcher.lane();
         newNode = true;
         if (parent != null) {
             logger.debug("Zookeeper preference node `{}` created as a child of {}", name, parent);
         }
+        if (detached) {
+            return;
+        }
+        ZkManager.metrics().nodeCreated(this);
         try {
             flush();
         } catch (BackingStoreException e) {
@@ -149,22 +284,125 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
         return makePath(absolutePath(), child);
     }
 
+    /**
+     * Writes without taking the node lock, so that writes of different keys of the same node run concurrently,
+     * while the writes of the same key are still applied in order.
+     */
+    @Override
+    public void put(String key, String value) {
+        Preconditions.checkNotNull(key, "Null key");
+        Preconditions.checkNotNull(value, "Null value");
+        Preconditions.checkArgument(key.length() <= MAX_KEY_LENGTH, "Key too long: %s", key);
+        Preconditions.checkArgument(value.length() <= MAX_VALUE_LENGTH, "Value too long: %s", value);
+        write(key, () -> putSpi(key, value));
+    }
+
+    /**
+     * Removes a key without taking the node lock, just like {@link #put}.
+     */
+    @Override
+    public void remove(String key) {
+        Preconditions.checkNotNull(key, "Specified key cannot be null");
+        write(key, () -> removeSpi(key));
+    }
+
+    /**
+     * Runs a write of a key, excluding the other writes of the same key and the removal of the node,
+     * once the asynchronous writes of the key in progress are done.
+     * These are waited for before taking any lock, so that the other keys sharing the lock are not held up.
+     * The change events are triggered by the watch rather than by {@link AbstractPreferences},
+     * so they need no ordering besides the one of the writes.
+     */
+    private void write(String key, Runnable write) {
+        while (true) {
+            final CompletableFuture<Void> pending = pendingWrites.get(key);
+            if (pending != null) {
+                // its failure is reported to the caller of putAsync
+                pending.handle((v, e) -> null).join();
+            }
+            final boolean written = striped(key, () -> {
+                final CompletableFuture<Void> newer = pendingWrites.get(key);
+                if (newer != null && !newer.isDone()) {
+                    return false;
+                }
+                write.run();
+                return true;
+            });
+            if (written) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs an action under the lock of a key, as long as the node is not removed.
+     */
+    private boolean striped(String key, BooleanSupplier action) {
+        final Lock shared = NODE_LOCKS.get(absolutePath()).readLock();
+        shared.lock();
+        try {
+            if (deleted) {
+                throw new IllegalStateException("Node has been removed.");
+            }
+            final Lock exclusive = KEY_LOCKS.get(makePath(absolutePath(), key));
+            exclusive.lock();
+            try {
+                return action.getAsBoolean();
+            } finally {
+                exclusive.unlock();
+            }
+        } finally {
+            shared.unlock();
+        }
+    }
+
     @Override
     protected void putSpi(String key, String value) {
         logger.trace("Setting key `{}` in {}", key, this);
-        putRawBytes(key, bytes(value));
+        timedRun(PUT, () -> putRawBytes(key, bytes(value)));
     }
 
+    /**
+     * Writes a value with as few round trips as possible: none when the cached value is the same,
+     * a single versioned `setData` when the current version is cached, otherwise a single `setData` of any version,
+     * which only falls back to a `create` if the key is missing.
+     * The nodes known to store values in chunks rather read the value first when it's not cached, as its chunks
+     * are to be removed along with it (and an unchanged value is not written again): they create it optimistically,
+     * and only read it if it already exists, to update it with a versioned `setData`.
+     * Concurrent modifications make the conditional write fail, in which case it's retried from a fresh read.
+     */
     private void putRawBytes(String key, byte[] bytes) {
         final String path = path(key);
         try {
-            if (curator.checkExists().forPath(path) == null) {
-                curator.create().forPath(path, bytes);
+            final ZkValue cached = cachedValue(key);
+            if (isUnchanged(cached, bytes)) {
+                return;
+            }
+            final byte[] stored = compression.encode(bytes);
+            Stat stat;
+            if (cached != null) {
+                stat = setDataIfVersion(path, stored, cached.version, cached.manifest);
+            } else if (!chunked) {
+                stat = setDataIfExists(path, stored);
+                if (stat == null) {
+                    stat = createIfAbsent(path, stored);
+                }
             } else {
-                if (! Arrays.equals(bytes, curator.getData().forPath(path)) ) {
-                    curator.setData().forPath(path, bytes);
+                stat = createIfAbsent(path, stored);
+            }
+            while (stat == null) {
+                final Stat current = new Stat();
+                final byte[] data = getDataIfExists(path, current);
+                final ZkChunks.Manifest manifest = ZkChunks.Manifest.parse(data);
+                if (data == null) {
+                    stat = createIfAbsent(path, stored);
+                } else if (manifest == null && Arrays.equals(bytes, ZkCompression.decode(data))) {
+                    stat = current;
+                } else {
+                    stat = setDataIfVersion(path, stored, current.getVersion(), manifest);
                 }
             }
+            cacheValue(key, ZkValue.written(bytes, stat));
         } catch (NoNodeException e) {
             throw new IllegalArgumentException(e);
         } catch (Exception e) {
@@ -172,32 +410,357 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
         }
     }
 
+    /**
+     * @return whether the value is known to be the same as the cached one, so it needs not be written
+     */
+    private static boolean isUnchanged(ZkValue cached, byte[] bytes) {
+        return cached != null && cached.manifest == null && Arrays.equals(bytes, cached.data);
+    }
+
+    private byte[] getDataIfExists(String path, Stat stat) throws Exception {
+        try {
+            return curator.getData().storingStatIn(stat).forPath(path);
+        } catch (NoNodeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the stat of the updated node, or null if it does not exist.
+     */
+    private Stat setDataIfExists(String path, byte[] bytes) throws Exception {
+        try {
+            return curator.setData().forPath(path, bytes);
+        } catch (NoNodeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the stat of the created node, or null if it was created by someone else in the meantime.
+     */
+    private Stat createIfAbsent(String path, byte[] bytes) throws Exception {
+        try {
+            final Stat stat = new Stat();
+            curator.create().storingStatIn(stat).forPath(path, bytes);
+            return stat;
+        } catch (NodeExistsException e) {
+            logger.debug("Concurrent creation of {}, retrying", path);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the stat of the updated node, or null if it was modified or removed by someone else in the meantime.
+     * The chunks of a value stored in chunks are removed along with the update.
+     */
+    private Stat setDataIfVersion(String path, byte[] bytes, int version, ZkChunks.Manifest previous)
+            throws Exception {
+        try {
+            if (previous == null) {
+                return curator.setData().withVersion(version).forPath(path, bytes);
+            }
+            final List<CuratorOp> ops = new ArrayList<>(previous.deleteOps(curator, path));
+            ops.add(0, curator.transactionOp().setData().withVersion(version).forPath(path, bytes));
+            return curator.transaction().forOperations(ops).get(0).getResultStat();
+        } catch (BadVersionException | NoNodeException e) {
+            logger.debug("Concurrent modification of {}, retrying", path);
+            return null;
+        }
+    }
+
     @Override
     public void putByteArray(String key, byte[] value) {
         logger.trace("Setting key `{}` as byte array in {}", key, this);
         if (encodedBinary) {
             super.putByteArray(key, value);
         } else {
-            putRawBytes(key, value);
+            Preconditions.checkNotNull(key, "Null key");
+            Preconditions.checkNotNull(value, "Null value");
+            final byte[] bytes = cachedValues ? value.clone() : value;
+            write(key, () -> putRawBytes(key, bytes));
+        }
+    }
+
+    @Override
+    public int version(String key) {
+        Preconditions.checkNotNull(key, "Null key");
+        checkNotRemoved();
+        final ZkValue value = timed(GET, () -> getValue(key));
+        return value != null ? value.version : -1;
+    }
+
+    @Override
+    public boolean compareAndSet(String key, int expectedVersion, String value) {
+        checkPut(key, value);
+        return compareAndWrite(key, current -> (current != null ? current.version : -1) == expectedVersion,
+                bytes(value), false);
+    }
+
+    @Override
+    public boolean compareAndSet(String key, String expectedValue, String value) {
+        checkPut(key, value);
+        final byte[] expected = bytes(expectedValue);
+        return compareAndWrite(key, current -> hasValue(current, expected), bytes(value), true);
+    }
+
+    @Override
+    public boolean compareAndRemove(String key, int expectedVersion) {
+        Preconditions.checkNotNull(key, "Null key");
+        return compareAndWrite(key, current -> current != null && current.version == expectedVersion, null, false);
+    }
+
+    @Override
+    public boolean compareAndRemove(String key, String expectedValue) {
+        Preconditions.checkNotNull(key, "Null key");
+        Preconditions.checkNotNull(expectedValue, "Null value");
+        final byte[] expected = bytes(expectedValue);
+        return compareAndWrite(key, current -> hasValue(current, expected), null, true);
+    }
+
+    private static void checkPut(String key, String value) {
+        Preconditions.checkNotNull(key, "Null key");
+        Preconditions.checkNotNull(value, "Null value");
+        Preconditions.checkArgument(key.length() <= MAX_KEY_LENGTH, "Key too long: %s", key);
+        Preconditions.checkArgument(value.length() <= MAX_VALUE_LENGTH, "Value too long: %s", value);
+    }
+
+    /**
+     * @param expected the expected value, or null for a missing key (a value stored in chunks is never expected)
+     */
+    private static boolean hasValue(ZkValue current, byte[] expected) {
+        if (current == null) {
+            return expected == null;
+        }
+        return current.manifest == null && expected != null && Arrays.equals(expected, current.data);
+    }
+
+    /**
+     * Writes (or removes, when {@code bytes} is null) the value of a key only if the current one is expected,
+     * with a write conditioned on the version it was found at, so the key cannot have been modified in between.
+     * The current value is taken from the cache when known, and read again when either the cached value is not
+     * the expected one or the write finds it stale. A concurrent modification fails the write, unless
+     * {@code retry} (when the value rather than its version is expected), in which case it's checked again.
+     */
+    private boolean compareAndWrite(String key, Predicate<ZkValue> expected, byte[] bytes,
+                                    boolean retry) {
+        final AtomicBoolean written = new AtomicBoolean();
+        write(key, () -> timedRun(bytes != null ? PUT : REMOVE, () -> {
+            final String path = path(key);
+            try {
+                final ZkValue cached = cachedEntry(key);
+                boolean fresh = cached == null;
+                ZkValue current = fresh ? readValue(path) : cached.removed ? null : cached;
+                while (true) {
+                    if (expected.apply(current)) {
+                        final boolean done = bytes != null
+                                ? setIfVersion(key, path, bytes, current)
+                                : removeIfVersion(key, path, current);
+                        if (done) {
+                            written.set(true);
+                            return;
+                        }
+                        if (fresh && !retry) {
+                            return;
+                        }
+                    } else if (fresh) {
+                        return;
+                    }
+                    current = readValue(path);
+                    fresh = true;
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }));
+        return written.get();
+    }
+
+    /**
+     * @return the value of a key as currently stored in zookeeper, cached, or null if the key is missing
+     */
+    private ZkValue readValue(String path) throws Exception {
+        final Stat stat = new Stat();
+        final byte[] data = getDataIfExists(path, stat);
+        if (data == null) {
+            return null;
+        }
+        final ZkValue value = ZkValue.of(data, stat);
+        cacheValue(basename(path), value);
+        return value;
+    }
+
+    /**
+     * Creates the key if {@code current} is null, otherwise updates it if it's still at the version of current.
+     */
+    private boolean setIfVersion(String key, String path, byte[] bytes, ZkValue current) throws Exception {
+        final byte[] stored = compression.encode(bytes);
+        final Stat stat = current == null
+                ? createIfAbsent(path, stored)
+                : setDataIfVersion(path, stored, current.version, current.manifest);
+        if (stat == null) {
+            return false;
+        }
+        cacheValue(key, ZkValue.written(bytes, stat));
+        return true;
+    }
+
+    /**
+     * Removes the key if it's still at the version of {@code current}, just like {@link #removeSpi(String)}.
+     */
+    private boolean removeIfVersion(String key, String path, ZkValue current) throws Exception {
+        final boolean notify = !preferenceChangeListeners.isEmpty() && removedKeys.add(key);
+        try {
+            final List<CuratorOp> ops = new ArrayList<>();
+            ops.add(curator.transactionOp().delete().withVersion(current.version).forPath(path));
+            if (current.manifest != null) {
+                ops.addAll(current.manifest.deleteOps(curator, path));
+            }
+            curator.transaction().forOperations(ops);
+            values.computeIfPresent(key, (k, v) -> ZkValue.removed(v.mzxid));
+            return true;
+        } catch (NotEmptyException e) {
+            // the key is also a non-empty child node, so its value is cleared instead
+            clearRemovedKey(notify, key);
+            final Stat stat = setDataIfVersion(path, null, current.version, current.manifest);
+            if (stat != null) {
+                cacheValue(key, ZkValue.written(null, stat));
+            }
+            return stat != null;
+        } catch (BadVersionException | NoNodeException e) {
+            clearRemovedKey(notify, key);
+            logger.debug("Concurrent modification of {}", path);
+            return false;
+        } catch (Exception e) {
+            clearRemovedKey(notify, key);
+            throw e;
         }
     }
 
+    /**
+     * Answers the reads of cached values without taking the node lock, so the readers of a node neither contend
+     * with each other nor wait for the zookeeper calls made under the lock (e.g. by writes).
+     * A watched node cannot have been removed, as removing a node stops its watch first.
+     */
+    @Override
+    public String get(String key, String def) {
+        Preconditions.checkNotNull(key, "Null key");
+        final ZkValue cached = watching ? cachedEntry(key) : null;
+        if (cached == null) {
+            return super.get(key, def);
+        }
+        if (cached.removed) {
+            stats.missingKeyHit();
+            return def;
+        }
+        final String value = cached.string();
+        return value != null ? value : def;
+    }
+
     @Override
     protected String getSpi(String key) {
         logger.trace("Getting key `{}` in {}", key, this);
-        return string(getRawBytes(key));
+        return timed(GET, () -> {
+            final ZkValue value = getValue(key);
+            return value != null ? value.string() : null;
+        });
     }
 
     private byte[] getRawBytes(String key) {
+        final ZkValue value = getValue(key);
+        return value != null ? value.data : null;
+    }
+
+    /**
+     * Returns the cached value of a key, or reads (and caches) it, if not cached; null if the key is missing.
+     * A missing key is cached as well, as a tombstone that the watch replaces once the key is created.
+     */
+    private ZkValue getValue(String key) {
+        watchForCaching();
+        final ZkValue cached = cachedEntry(key);
+        if (cached != null) {
+            if (cached.removed) {
+                stats.missingKeyHit();
+                return null;
+            }
+            return cached;
+        }
         try {
-            return curator.getData().forPath(path(key));
+            final Stat stat = new Stat();
+            final byte[] data = curator.getData().storingStatIn(stat).forPath(path(key));
+            final ZkValue value = ZkValue.of(data, stat);
+            cacheValue(key, value);
+            return value;
         } catch (NoNodeException e) {
+            stats.missingKeyMiss();
+            cacheValue(key, ZkValue.missing());
             return null;
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
     }
 
+    @Override
+    public int getInt(String key, int def) {
+        final Integer value = getParsed(key, Integer.class, Integer::valueOf);
+        return value != null ? value : def;
+    }
+
+    @Override
+    public long getLong(String key, long def) {
+        final Long value = getParsed(key, Long.class, Long::valueOf);
+        return value != null ? value : def;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean def) {
+        final Boolean value = getParsed(key, Boolean.class, ZkPreferences::parseBoolean);
+        return value != null ? value : def;
+    }
+
+    @Override
+    public double getDouble(String key, double def) {
+        final Double value = getParsed(key, Double.class, Double::valueOf);
+        return value != null ? value : def;
+    }
+
+    /**
+     * Same as {@link AbstractPreferences#getBoolean}: only "true" and "false" are valid, regardless of the case.
+     */
+    private static Boolean parseBoolean(String value) {
+        return "true".equalsIgnoreCase(value) ? Boolean.TRUE : "false".equalsIgnoreCase(value) ? Boolean.FALSE : null;
+    }
+
+    /**
+     * Returns the parsed form of a value, which is memoised along with the cached value, so it's only parsed again
+     * once the watch replaces it with a newer version; null if the value is missing, invalid or cannot be read.
+     */
+    private <T> T getParsed(String key, Class<T> type, Function<String, T> parser) {
+        Preconditions.checkNotNull(key, "Null key");
+        checkNotRemoved();
+        final ZkValue value;
+        try {
+            value = getValue(key);
+        } catch (RuntimeException e) {
+            // just like the default typed getters, which fall back to the default value
+            return null;
+        }
+        return value != null ? value.parsed(type, parser) : null;
+    }
+
+    /**
+     * Returns a binary value without copying it: the buffer is a read-only view of the cached value when values are
+     * cached, and its content is decoded only once per version of the value when binary values are Base64 encoded.
+     */
+    ByteBuffer getByteBuffer(String key) {
+        Preconditions.checkNotNull(key, "Specified key cannot be null");
+        logger.trace("Getting key `{}` as byte buffer in {}", key, this);
+        checkNotRemoved();
+        final ZkValue value = getValue(key);
+        final byte[] bytes = value == null ? null : encodedBinary ? value.binary() : value.data;
+        return bytes != null ? ByteBuffer.wrap(bytes).asReadOnlyBuffer() : null;
+    }
+
     @Override
     public byte[] getByteArray(String key, byte[] def) {
         logger.trace("Getting key `{}` as byte array in {}", key, this);
@@ -205,33 +768,179 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
             return super.getByteArray(key, def);
         } else {
             final byte[] value = getRawBytes(key);
-            return value != null ? value : def;
+            if (value == null) {
+                return def;
+            }
+            // never hand out the cached array
+            return cachedValues ? value.clone() : value;
+        }
+    }
+
+    /**
+     * Returns the cached value of a key, if value caching is enabled and the key is known to exist.
+     */
+    private ZkValue cachedValue(String key) {
+        final ZkValue value = cachedEntry(key);
+        return value != null && !value.removed ? value : null;
+    }
+
+    /**
+     * Returns what the cache knows about a key: its value, a tombstone if it is known to be missing,
+     * or null if it is not known (or value caching is disabled).
+     */
+    private ZkValue cachedEntry(String key) {
+        return cachedValues ? values.get(key) : null;
+    }
+
+    /**
+     * Lazily starts watching the children of this node, as the cached values are only valid while doing so.
+     */
+    private void watchForCaching() {
+        if (cachedValues && !watching && !closed) {
+            synchronized (lock) {
+                if (!watching && !closed) {
+                    startWatching();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores a value in the local cache, unless the cache already holds a more recent version of that key.
+     * Values are only cached while the node is watched, as otherwise nothing would invalidate them.
+     */
+    private void cacheValue(String key, ZkValue value) {
+        if (value.manifest != null) {
+            chunked = true;
         }
+        if (cachedValues && watching) {
+            values.merge(key, value, ZkValue::latest);
+        }
+    }
+
+    /**
+     * Starts the watch that keeps the cached values up to date, ahead of a {@link #warmUp}.
+     *
+     * @return whether the values of this node are cached
+     */
+    boolean startCaching() {
+        watchForCaching();
+        return cachedValues;
+    }
+
+    /**
+     * Seeds the value cache with the values read in bulk by a {@link ZkWarmUp}, which are to be read
+     * once {@link #startCaching()} started the watch; the values seen by the watch in the meantime take precedence.
+     */
+    void warmUp(Map<String, ZkSnapshot.Entry> entries) {
+        watchForCaching();
+        entries.forEach((key, entry) -> {
+            if (entry.data != null) {
+                cacheValue(key, entry.data);
+            }
+        });
     }
 
     @Override
     protected void removeSpi(String key) {
         logger.trace("Removing preference key `{}` in {}", key, this);
-        try {
-            curator.delete().forPath(path(key));
-        } catch (NotEmptyException e) {
-            // fallback to setting a null value if the node is also a non-empty child node
-            putSpi(key, null);
-        } catch (NoNodeException e) {
-            logger.debug("Failed to remove key `{}` from {} as it does not exist in zookeeper");
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
+        timedRun(REMOVE, () -> {
+            final boolean notify = !preferenceChangeListeners.isEmpty() && removedKeys.add(key);
+            try {
+                deleteValue(key);
+                values.computeIfPresent(key, (k, v) -> ZkValue.removed(v.mzxid));
+            } catch (NotEmptyException e) {
+                // fallback to setting a null value if the node is also a non-empty child node
+                clearRemovedKey(notify, key);
+                putSpi(key, null);
+            } catch (NoNodeException e) {
+                clearRemovedKey(notify, key);
+                logger.debug("Failed to remove key `{}` from {} as it does not exist in zookeeper");
+            } catch (Exception e) {
+                clearRemovedKey(notify, key);
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Deletes the znode of a key, along with its chunks when stored in chunks.
+     * The value is only read first, to find its chunks, when this node is known to store values in chunks
+     * or when the cached value is outdated; otherwise it's deleted right away, at the cached version if any,
+     * so that a value stored in chunks since it was cached is not deleted without its chunks.
+     */
+    private void deleteValue(String key) throws Exception {
+        final String path = path(key);
+        final ZkValue cached = cachedEntry(key);
+        if (cached != null && !cached.removed && cached.manifest == null) {
+            try {
+                curator.delete().withVersion(cached.version).forPath(path);
+                return;
+            } catch (BadVersionException e) {
+                logger.debug("Outdated cached value of {}, reading it", path);
+            }
+        } else if (!chunked && (cached == null || cached.removed)) {
+            curator.delete().forPath(path);
+            return;
+        }
+        while (true) {
+            final Stat stat = new Stat();
+            final ZkChunks.Manifest manifest =
+                    ZkChunks.Manifest.parse(curator.getData().storingStatIn(stat).forPath(path));
+            if (manifest == null) {
+                try {
+                    curator.delete().withVersion(stat.getVersion()).forPath(path);
+                    return;
+                } catch (BadVersionException e) {
+                    logger.debug("Concurrent modification of {}, retrying", path);
+                    continue;
+                }
+            }
+            chunked = true;
+            final List<CuratorOp> ops = new ArrayList<>(manifest.deleteOps(curator, path));
+            ops.add(0, curator.transactionOp().delete().withVersion(stat.getVersion()).forPath(path));
+            try {
+                curator.transaction().forOperations(ops);
+                return;
+            } catch (BadVersionException e) {
+                logger.debug("Concurrent modification of {}, retrying", path);
+            }
+        }
+    }
+
+    private void clearRemovedKey(boolean notify, String key) {
+        if (notify) {
+            removedKeys.remove(key);
         }
     }
 
     @Override
     protected void removeNodeSpi() throws BackingStoreException {
+        timedRun(REMOVE_NODE, () -> {
+            // wait for the writes in progress, and fail the next ones
+            final Lock exclusive = NODE_LOCKS.get(absolutePath()).writeLock();
+            exclusive.lock();
+            try {
+                deleteNode();
+                deleted = true;
+            } finally {
+                exclusive.unlock();
+            }
+        });
+    }
+
+    private void deleteNode() throws BackingStoreException {
         logger.info("Removing preference node {}", this);
+        // the children cache re-creates its path when it finds it missing, so close it before deleting the node
+        closed = true;
+        stopWatching();
         try {
-            if (curator.checkExists().forPath(absolutePath()) != null) {
+            final Stat stat = curator.checkExists().forPath(absolutePath());
+            if (stat != null) {
                 curator.delete().deletingChildrenIfNeeded().forPath(absolutePath());
                 // required as the parent will ignore the CHILD_REMOVED event since this child will be already gone
                 // worst case scenario, the remove notification will be triggered twice
+                parent().triggerPendingChildAdded(name(), stat.getCzxid());
                 parent().triggerChildRemoved(this);
             }
         } catch (NoNodeException e) {
@@ -240,50 +949,457 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
             throw new BackingStoreException(e);
         } finally {
             logger.info("Cleaning up node and preference listeners for {}", absolutePath());
-            nodeChangeListeners.clear();
-            preferenceChangeListeners.clear();
-            stopWatching();
+            synchronized (removedKeys) {
+                // the watch may be closed before it got to notify the removal of the last keys
+                removedKeys.forEach(this::triggerPreferenceDropped);
+                removedKeys.clear();
+                nodeChangeListeners.clear();
+                preferenceChangeListeners.clear();
+            }
         }
     }
 
     @Override
-    protected String[] keysSpi() {
+    protected String[] keysSpi() throws BackingStoreException {
         logger.trace("Getting preference keys of {}", this);
-        return getChildren(ZkPreferences::isValueNode);
+        return timed(KEYS, () -> getChildren(ZkPreferences::isValueNode));
     }
 
     @Override
-    protected String[] childrenNamesSpi() {
+    protected String[] childrenNamesSpi() throws BackingStoreException {
         logger.trace("Getting children of {}", this);
-        return getChildren(ZkPreferences::isContainerNode);
+        return timed(CHILDREN_NAMES, () -> getChildren(ZkPreferences::isContainerNode));
     }
 
 
     /**
      * Lists only the child zookeeper nodes that comply to the provided filter (which should include
      * either "directories" or "files").
+     * <p>
+     * The stats of the children are all requested at once in the background, so listing a node costs about two
+     * round trips to zookeeper, regardless of the number of children.
      */
-    protected String[] getChildren(Predicate<Stat> filter) {
+    protected String[] getChildren(Predicate<Stat> filter) throws BackingStoreException {
         try {
-            final List<String> children = curator.getChildren().forPath(absolutePath());
-            // list as keys only the child nodes with no children of their own
-            for (Iterator<String> iter = children.iterator(); iter.hasNext(); ) {
-                final String child = iter.next();
-                final Stat stat = curator.checkExists().forPath(path(child));
-                if (!filter.apply(stat)) {
-                    iter.remove();
+            return getChildrenAsync(filter)
+                    .get(curator.getZookeeperClient().getConnectionTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BackingStoreException(e);
+        } catch (ExecutionException e) {
+            throw new BackingStoreException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new BackingStoreException(e);
+        }
+    }
+
+    private CompletableFuture<String[]> getChildrenAsync(Predicate<Stat> filter) {
+        final String path = absolutePath();
+        return inBackground(path, CuratorEvent::getChildren, Collections.<String>emptyList(),
+                callback -> curator.getChildren().inBackground(callback).forPath(path))
+                .thenCompose(all -> {
+                    // the chunks of the values stored in chunks are neither keys nor children
+                    final List<String> children = new ArrayList<>(all);
+                    if (children.removeIf(ZkChunks::isChunk)) {
+                        chunked = true;
+                    }
+                    return childStats(children).thenApply(stats -> {
+                        // list as keys only the child nodes with no children of their own
+                        final List<String> filtered = new ArrayList<>(children);
+                        filtered.removeIf(child -> !filter.apply(stats.get(child)));
+                        return filtered.toArray(new String[filtered.size()]);
+                    });
+                });
+    }
+
+    /**
+     * Fetches the stats of the given children in a single pipelined batch.
+     * Children removed in the meantime are mapped to no stat at all.
+     * <p>
+     * The stats of the watched children cache are not used: they are only refreshed when the data of a child changes,
+     * so they miss the children of its own (which make a key a child node).
+     */
+    private CompletableFuture<Map<String, Stat>> childStats(List<String> children) {
+        final Map<String, Stat> stats = new ConcurrentHashMap<>(children.size());
+        final CompletableFuture<Map<String, Stat>> result = new CompletableFuture<>();
+        if (children.isEmpty()) {
+            result.complete(stats);
+            return result;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(children.size());
+        for (String child : children) {
+            final String path = path(child);
+            inBackground(path, CuratorEvent::getStat, null,
+                    callback -> curator.checkExists().inBackground(callback).forPath(path))
+                    .whenComplete((stat, e) -> {
+                        if (e != null) {
+                            result.completeExceptionally(e);
+                            return;
+                        }
+                        if (stat != null) {
+                            stats.put(child, stat);
+                        }
+                        if (remaining.decrementAndGet() == 0) {
+                            result.complete(stats);
+                        }
+                    });
+        }
+        return result;
+    }
+
+    /**
+     * Computes a stamp of the keys, values and children of this node, which changes whenever any of them does,
+     * from the stats of the znodes alone: the {@code cversion} of the node (bumped when a key or a child is added
+     * or removed), and the name, {@code mzxid} and {@code version} of each of its znodes (bumped when a value
+     * is modified), along with whether it ever had children (when a key turns into a child node).
+     * The changes to the children of the child nodes don't change the stamp.
+     * <p>
+     * It takes a listing of the node and the stats of its znodes, in two round trips, and no value is read.
+     */
+    String stamp() throws BackingStoreException {
+        return timed(STAMP, () -> {
+            try {
+                return stampAsync().get(curator.getZookeeperClient().getConnectionTimeoutMs(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BackingStoreException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new BackingStoreException(e.getCause());
+            } catch (TimeoutException e) {
+                throw new BackingStoreException(e);
+            }
+        });
+    }
+
+    private CompletableFuture<String> stampAsync() {
+        final String path = absolutePath();
+        return inBackground(path, Function.<CuratorEvent>identity(), null,
+                callback -> curator.getChildren().inBackground(callback).forPath(path))
+                .thenCompose(event -> {
+                    if (event == null) {
+                        throw new IllegalStateException("Node has been removed.");
+                    }
+                    final List<String> children = new ArrayList<>(event.getChildren());
+                    if (children.removeIf(ZkChunks::isChunk)) {
+                        chunked = true;
+                    }
+                    children.remove(CHILD_MARKER);
+                    Collections.sort(children);
+                    return childStats(children).thenApply(stats -> {
+                        final Hasher hasher = Hashing.murmur3_128().newHasher()
+                                .putInt(event.getStat().getCversion());
+                        for (String child : children) {
+                            final Stat stat = stats.get(child);
+                            hasher.putInt(child.length()).putUnencodedChars(child);
+                            if (stat != null) {
+                                hasher.putLong(stat.getMzxid()).putInt(stat.getVersion())
+                                        .putBoolean(stat.getCversion() > 0);
+                            }
+                        }
+                        return hasher.hash().toString();
+                    });
+                });
+    }
+
+    @Override
+    public CompletableFuture<String> getAsync(String key, String def) {
+        Preconditions.checkNotNull(key, "Null key");
+        checkNotRemoved();
+        watchForCaching();
+        final ZkValue cached = cachedEntry(key);
+        if (cached != null) {
+            if (cached.removed) {
+                stats.missingKeyHit();
+            }
+            return CompletableFuture.completedFuture(cached.data != null ? cached.string() : def);
+        }
+        final String path = path(key);
+        return inBackground(path, event -> ZkValue.of(event.getData(), event.getStat()), ZkValue.missing(),
+                callback -> curator.getData().inBackground(callback).forPath(path))
+                .thenApply(value -> {
+                    if (value.removed) {
+                        stats.missingKeyMiss();
+                    }
+                    cacheValue(key, value);
+                    return value.string();
+                })
+                .handle((value, e) -> value != null ? value : def);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, String value) {
+        Preconditions.checkNotNull(key, "Null key");
+        Preconditions.checkNotNull(value, "Null value");
+        Preconditions.checkArgument(key.length() <= MAX_KEY_LENGTH, "Key too long: %s", key);
+        Preconditions.checkArgument(value.length() <= MAX_VALUE_LENGTH, "Value too long: %s", value);
+        checkNotRemoved();
+        final byte[] bytes = bytes(value);
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        // chained on the previous asynchronous write of the key, so that the writes of a key are applied in order
+        striped(key, () -> {
+            final CompletableFuture<Void> previous = pendingWrites.get(key);
+            final CompletableFuture<Void> written = previous == null ? putRawBytesAsync(key, bytes)
+                    : previous.handle((v, e) -> null).thenCompose(v -> putRawBytesAsync(key, bytes));
+            pendingWrites.put(key, written);
+            written.whenComplete((v, e) -> {
+                pendingWrites.remove(key, written);
+                if (e != null) {
+                    final Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    result.completeExceptionally(cause instanceof NoNodeException
+                            ? new IllegalArgumentException(cause) : new IllegalStateException(cause));
+                } else {
+                    result.complete(null);
+                }
+            });
+            return true;
+        });
+        return result;
+    }
+
+    /**
+     * Same as {@link #putRawBytes(String, byte[])}, with background requests: the value is either updated
+     * or created, and a versioned `setData` removes the chunks of a value stored in chunks along with it.
+     */
+    private CompletableFuture<Void> putRawBytesAsync(String key, byte[] bytes) {
+        final String path = path(key);
+        final ZkValue cached = cachedValue(key);
+        if (isUnchanged(cached, bytes)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final byte[] stored = compression.encode(bytes);
+        final CompletableFuture<Stat> first;
+        if (cached != null) {
+            first = setDataIfVersionAsync(path, stored, cached.version, cached.manifest);
+        } else if (!chunked) {
+            first = setDataIfExistsAsync(path, stored)
+                    .thenCompose(stat -> stat != null ? CompletableFuture.completedFuture(stat)
+                            : createAsync(path, stored));
+        } else {
+            first = createAsync(path, stored);
+        }
+        return first
+                .thenCompose(stat -> stat != null ? CompletableFuture.completedFuture(stat)
+                        : retryPutAsync(path, bytes, stored))
+                .thenAccept(stat -> cacheValue(key, ZkValue.written(bytes, stat)));
+    }
+
+    /**
+     * Reads the current value, then either creates it or updates its version, until no concurrent write interferes;
+     * completes with the stat of the written value (or of the current one, if unchanged).
+     */
+    private CompletableFuture<Stat> retryPutAsync(String path, byte[] bytes, byte[] stored) {
+        return inBackground(path, Function.<CuratorEvent>identity(), null,
+                callback -> curator.getData().inBackground(callback).forPath(path))
+                .thenCompose(current -> {
+                    final CompletableFuture<Stat> write;
+                    if (current == null) {
+                        write = createAsync(path, stored);
+                    } else {
+                        final ZkChunks.Manifest manifest = ZkChunks.Manifest.parse(current.getData());
+                        if (manifest == null && Arrays.equals(bytes, ZkCompression.decode(current.getData()))) {
+                            return CompletableFuture.completedFuture(current.getStat());
+                        }
+                        write = setDataIfVersionAsync(path, stored, current.getStat().getVersion(), manifest);
+                    }
+                    return write.thenCompose(stat -> stat != null ? CompletableFuture.completedFuture(stat)
+                            : retryPutAsync(path, bytes, stored));
+                });
+    }
+
+    /**
+     * Completes with the stat of the updated node, or with null if it does not exist.
+     */
+    private CompletableFuture<Stat> setDataIfExistsAsync(String path, byte[] bytes) {
+        final CompletableFuture<Stat> updated = new CompletableFuture<>();
+        try {
+            curator.setData().inBackground((client, event) -> {
+                final Code code = Code.get(event.getResultCode());
+                if (code == Code.OK) {
+                    updated.complete(event.getStat());
+                } else if (code == Code.NONODE) {
+                    updated.complete(null);
+                } else {
+                    updated.completeExceptionally(KeeperException.create(code, path));
+                }
+            }).forPath(path, bytes);
+        } catch (Exception e) {
+            updated.completeExceptionally(e);
+        }
+        return updated;
+    }
+
+    /**
+     * Completes with the stat of the created node, or with null if it was concurrently created by someone else.
+     */
+    private CompletableFuture<Stat> createAsync(String path, byte[] bytes) {
+        final CompletableFuture<Stat> created = new CompletableFuture<>();
+        try {
+            curator.create().storingStatIn(new Stat()).inBackground((client, event) -> {
+                final Code code = Code.get(event.getResultCode());
+                if (code == Code.OK) {
+                    created.complete(event.getStat());
+                } else if (code == Code.NODEEXISTS) {
+                    logger.debug("Concurrent creation of {}, retrying", path);
+                    created.complete(null);
+                } else {
+                    created.completeExceptionally(KeeperException.create(code, path));
+                }
+            }).forPath(path, bytes);
+        } catch (Exception e) {
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    /**
+     * Same as {@link #setDataIfVersion(String, byte[], int, ZkChunks.Manifest)}, in the background.
+     */
+    private CompletableFuture<Stat> setDataIfVersionAsync(String path, byte[] bytes, int version,
+                                                          ZkChunks.Manifest previous) {
+        final CompletableFuture<Stat> updated = new CompletableFuture<>();
+        final BackgroundCallback callback = (client, event) -> {
+            final Code code = Code.get(event.getResultCode());
+            if (code == Code.OK) {
+                updated.complete(previous == null ? event.getStat() : event.getOpResults().get(0).getResultStat());
+            } else if (code == Code.BADVERSION || code == Code.NONODE) {
+                logger.debug("Concurrent modification of {}, retrying", path);
+                updated.complete(null);
+            } else {
+                updated.completeExceptionally(KeeperException.create(code, path));
+            }
+        };
+        try {
+            if (previous == null) {
+                curator.setData().withVersion(version).inBackground(callback).forPath(path, bytes);
+            } else {
+                final List<CuratorOp> ops = new ArrayList<>(previous.deleteOps(curator, path));
+                ops.add(0, curator.transactionOp().setData().withVersion(version).forPath(path, bytes));
+                curator.transaction().inBackground(callback).forOperations(ops);
+            }
+        } catch (Exception e) {
+            updated.completeExceptionally(e);
+        }
+        return updated;
+    }
+
+    @Override
+    public InputStream getStream(String key) {
+        Preconditions.checkNotNull(key, "Null key");
+        checkNotRemoved();
+        final ZkValue value = timed(GET, () -> getValue(key));
+        if (value == null) {
+            return null;
+        }
+        return value.manifest != null
+                ? new ZkChunks.Input(curator, path(key), value.manifest)
+                : new ByteArrayInputStream(value.data != null ? value.data : new byte[0]);
+    }
+
+    @Override
+    public OutputStream putStream(String key) {
+        Preconditions.checkNotNull(key, "Null key");
+        Preconditions.checkArgument(key.length() <= MAX_KEY_LENGTH, "Key too long: %s", key);
+        checkNotRemoved();
+        return new ZkChunks.Output(curator, path(key), ZkChunks.CHUNK_BYTES) {
+            @Override
+            protected void putValue(byte[] value) {
+                ZkPreferences.this.write(key, () -> timedRun(PUT, () -> putRawBytes(key, value)));
+            }
+
+            @Override
+            protected void publish(ZkChunks.Manifest manifest, CuratorOp lastChunk) {
+                ZkPreferences.this.write(key, () -> timedRun(PUT, () -> publishChunks(key, manifest, lastChunk)));
+            }
+        };
+    }
+
+    /**
+     * Publishes a value written in chunks, by creating its last chunk and replacing the current value of the key
+     * (along with its chunks, if any) in a single transaction, retried from a fresh read on concurrent modifications.
+     */
+    private void publishChunks(String key, ZkChunks.Manifest manifest, CuratorOp lastChunk) {
+        final String path = path(key);
+        chunked = true;
+        try {
+            while (true) {
+                final Stat current = new Stat();
+                final byte[] data = getDataIfExists(path, current);
+                final List<CuratorOp> ops = new ArrayList<>();
+                ops.add(lastChunk);
+                if (data == null) {
+                    ops.add(curator.transactionOp().create().forPath(path, manifest.bytes()));
+                } else {
+                    ops.add(curator.transactionOp().setData().withVersion(current.getVersion())
+                            .forPath(path, manifest.bytes()));
+                    final ZkChunks.Manifest previous = ZkChunks.Manifest.parse(data);
+                    if (previous != null) {
+                        ops.addAll(previous.deleteOps(curator, path));
+                    }
+                }
+                try {
+                    final Stat stat = curator.transaction().forOperations(ops).get(1).getResultStat();
+                    if (stat != null) {
+                        cacheValue(key, ZkValue.chunked(manifest, stat));
+                    } else {
+                        // created, without a stat to order it with the watch events: read it again when needed
+                        values.remove(key);
+                    }
+                    return;
+                } catch (NoNodeException e) {
+                    if (data == null) {
+                        // the node itself is missing
+                        throw e;
+                    }
+                    logger.debug("Concurrent removal of {}, retrying", path);
+                } catch (NodeExistsException | BadVersionException e) {
+                    logger.debug("Concurrent modification of {}, retrying", path);
                 }
             }
-            return children.toArray(new String[children.size()]);
+        } catch (NoNodeException e) {
+            throw new IllegalArgumentException(e);
         } catch (Exception e) {
-            return new String[0];
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<String[]> keysAsync() {
+        checkNotRemoved();
+        return getChildrenAsync(ZkPreferences::isValueNode);
+    }
+
+    @Override
+    public CompletableFuture<String[]> childrenNamesAsync() {
+        checkNotRemoved();
+        final Set<String> names = new TreeSet<>();
+        synchronized (lock) {
+            for (AbstractPreferences child : cachedChildren()) {
+                names.add(child.name());
+            }
+        }
+        return getChildrenAsync(ZkPreferences::isContainerNode).thenApply(children -> {
+            names.addAll(Arrays.asList(children));
+            return names.toArray(new String[names.size()]);
+        });
+    }
+
+    /**
+     * Only takes the node lock when the node is not watched, as a watched node cannot have been removed.
+     */
+    private void checkNotRemoved() {
+        if (!watching && isRemoved()) {
+            throw new IllegalStateException("Node has been removed.");
         }
     }
 
     @Override
     protected AbstractPreferences childSpi(String name) {
         logger.trace("Getting child `{}` of {}", name, this);
-        return new ZkPreferences(curator, this, name, encodedBinary, userNode);
+        return timed(CHILD, () -> new ZkPreferences(this, name, false));
     }
 
     @Override
@@ -291,19 +1407,59 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
         // NOOP
     }
 
+    private interface Call<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    private interface Action<E extends Exception> {
+        void run() throws E;
+    }
+
+    /**
+     * Records the latency (and the failure, if it throws) of an SPI call in the {@link ZkMetrics}.
+     */
+    private static <T, E extends Exception> T timed(ZkMetrics.Operation operation, Call<T, E> call) throws E {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final T result = call.call();
+            failed = false;
+            return result;
+        } finally {
+            operation.record(start, failed);
+        }
+    }
+
+    private static <E extends Exception> void timedRun(ZkMetrics.Operation operation, Action<E> action) throws E {
+        timed(operation, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * @return whether the node was neither removed nor closed
+     */
+    boolean isLive() {
+        return !closed && !deleted;
+    }
+
+    boolean isWatching() {
+        return watching;
+    }
+
+    int listenerCount() {
+        return preferenceChangeListeners.size() + nodeChangeListeners.size();
+    }
+
     private void startWatching() {
         logger.debug("Registering as listener for preference node {}", this);
         try {
-            pcc.start();
-            pcc.getListenable().addListener(this);
+            final ZkWatch watch = watches.apply(absolutePath());
+            watch.start(this);
+            this.watch = watch;
+            watching = true;
             logger.info("Started zookeeper listener for {}", this);
-        } catch (IllegalStateException benign) {
-            logger.debug("The patch children cache seems to be started already: {}", benign.toString());
-            try {
-                pcc.rebuild();
-            } catch (Exception e) {
-                throw new IllegalStateException("Failed to rebuild cache", e);
-            }
         } catch (Exception e) {
             throw new IllegalStateException("Failed to start cache", e);
         }
@@ -311,38 +1467,114 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
 
     private void stopWatching() {
         logger.info("Closing the Zookeeper listener for {}", this);
-        try {
-            pcc.close();
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+        watching = false;
+        values.clear();
+        final ZkWatch watch = this.watch;
+        this.watch = null;
+        if (watch != null) {
+            try {
+                watch.close();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
         }
     }
 
+    /**
+     * Returns the data of a child as last seen by the watch, if values are cached and this node is being watched.
+     */
+    private ChildData currentData(String path) {
+        final ZkWatch watch = this.watch;
+        return cachedValues && watch != null ? watch.getCurrentData(path) : null;
+    }
+
+    /**
+     * Makes sure the node exists in zookeeper and is marked as a container.
+     * <p>
+     * A missing or value-only node is marked by creating and removing a synthetic child in a single transaction
+     * (together with the node itself, when missing), so a node costs at most two round trips to materialise,
+     * and only one if it is already a container.
+     * Nodes known to be containers from the watched children cache of their parent are not checked at all.
+     */
     @Override
     protected void flushSpi() throws BackingStoreException {
         logger.debug("Flushing preference node {}", this);
-        try {
-            final Stat pathStat = curator.checkExists().forPath(absolutePath());
-            if (!isContainerNode(pathStat) && !CHILD_MARKER.equals(name())) {
-                // force the `cversion` to increment by adding and removing a random key
-                logger.debug("Creating a synthetic child `{}` to mark path as node by increasing the 'cversion': {}",
-                        CHILD_MARKER, absolutePath());
-                final String markerPath = path(CHILD_MARKER);
-                try {
-                    curator.create().creatingParentsIfNeeded().forPath(markerPath, CHILD_MARKER.getBytes());
-                    curator.delete().forPath(markerPath);
-                } catch (NodeExistsException e) {
-                    logger.debug("Node already created in zookeeper: {}", markerPath);
+        timedRun(FLUSH, () -> {
+            if (CHILD_MARKER.equals(name()) || isKnownContainer()) {
+                return;
+            }
+            try {
+                Stat pathStat = curator.checkExists().forPath(absolutePath());
+                while (!isContainerNode(pathStat)) {
+                    // force the `cversion` to increment by adding and removing a random key
+                    logger.debug("Creating a synthetic child `{}` to mark path as node "
+                            + "by increasing the 'cversion': {}", CHILD_MARKER, absolutePath());
+                    if (markAsContainer(pathStat == null)) {
+                        logger.info("Created zookeeper node for {}", this);
+                        return;
+                    }
+                    pathStat = curator.checkExists().forPath(absolutePath());
                 }
-                logger.info("Created zookeeper node for {}", this);
+            } catch (Exception e) {
+                throw new BackingStoreException(e);
             }
-            assert isContainerNode(curator.checkExists().forPath(absolutePath())) :
-                    "node not marked as child node: " + absolutePath();
+        });
+    }
+
+    /**
+     * Atomically creates and removes the child marker, along with the node itself if requested.
+     * Returns false if the node was concurrently created by someone else, in which case it has to be checked again.
+     */
+    private boolean markAsContainer(boolean createNode) throws Exception {
+        // a child removed right after being created may never be seen by the watch of its parent
+        final ZkPreferences parent = parent();
+        final boolean notify = createNode && parent != null && !parent.nodeChangeListeners.isEmpty()
+                && parent.pendingChildAdded(name(), true);
+        try {
+            return markAsContainer(createNode, parent, notify);
         } catch (Exception e) {
-            throw new BackingStoreException(e);
+            if (notify) {
+                parent.pendingChildAdded(name(), false);
+            }
+            throw e;
         }
     }
 
+    private boolean markAsContainer(boolean createNode, ZkPreferences parent, boolean notify) throws Exception {
+        final String markerPath = path(CHILD_MARKER);
+        final List<CuratorOp> ops = new ArrayList<>(3);
+        if (createNode) {
+            ops.add(curator.transactionOp().create().forPath(absolutePath(), new byte[0]));
+        }
+        ops.add(curator.transactionOp().create().forPath(markerPath, CHILD_MARKER.getBytes()));
+        ops.add(curator.transactionOp().delete().forPath(markerPath));
+        try {
+            curator.transaction().forOperations(ops);
+            return true;
+        } catch (NoNodeException e) {
+            // some ancestor is missing as well
+            logger.debug("Creating the missing parents of {}", this);
+            curator.create().creatingParentsIfNeeded().forPath(markerPath, CHILD_MARKER.getBytes());
+            curator.delete().forPath(markerPath);
+            return true;
+        } catch (NodeExistsException e) {
+            logger.debug("Node already created in zookeeper: {}", e.getPath());
+            if (notify) {
+                parent.pendingChildAdded(name(), false);
+            }
+            return false;
+        }
+    }
+
+    private boolean isKnownContainer() {
+        final ZkPreferences parent = parent();
+        if (parent == null) {
+            return false;
+        }
+        final ChildData childData = parent.currentData(absolutePath());
+        return childData != null && isContainerNode(childData.getStat());
+    }
+
     @Override
     public boolean isUserNode() {
         return userNode;
@@ -359,6 +1591,7 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
                 }
             }
             logger.info("Cleaning up node and preference listeners for {}", absolutePath());
+            closed = true;
             nodeChangeListeners.clear();
             preferenceChangeListeners.clear();
             stopWatching();
@@ -368,6 +1601,14 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
     @Override
     public void childEvent(CuratorFramework curator, PathChildrenCacheEvent event) {
         try {
+            final PathChildrenCacheEvent.Type type = event.getType();
+            if (type == CONNECTION_SUSPENDED || type == CONNECTION_LOST || type == CONNECTION_RECONNECTED) {
+                // watch events may have been missed, so nothing cached can be trusted any longer
+                logger.debug("Dropping the cached values of {} on zookeeper event: {}", this, type);
+                values.clear();
+                return;
+            }
+
             final ChildData childData = event.getData();
 
             if (childData == null || childData.getStat() == null) {
@@ -381,12 +1622,20 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
                 logger.trace("Ignoring events for child marker: {}", CHILD_MARKER);
                 return;
             }
+            if (ZkChunks.isChunk(name)) {
+                logger.trace("Ignoring events for chunk: {}", name);
+                chunked = true;
+                return;
+            }
 
-            final String value = string(childData.getData());
-            switch (event.getType()) {
+            switch (type) {
                 case CHILD_REMOVED:
-                    if (isValueNode(childData.getStat())) {
-                        triggerPreferenceDropped(name);
+                    cacheValue(name, ZkValue.removed(childData.getStat().getMzxid()));
+                    dropPendingUpdate(name);
+                    synchronized (removedKeys) {
+                        if (removedKeys.remove(name) || isValueNode(childData.getStat())) {
+                            triggerPreferenceDropped(name);
+                        }
                     }
                     final Optional<AbstractPreferences> child = Stream.of(cachedChildren())
                             .parallel()
@@ -403,17 +1652,25 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
                         }
                     });
                     break;
-                case CHILD_ADDED:
-                    if (isContainerNode(childData.getStat())) {
+                case CHILD_ADDED: {
+                    // the value is decoded once, for both the listeners and the cached reads
+                    final ZkValue value = ZkValue.of(childData);
+                    cacheValue(name, value);
+                    if (watchedChildAdded(name, childData.getStat())) {
                         triggerChildAdded(name);
                     }
                     if (isValueNode(childData.getStat())) {
-                        triggerPreferenceChange(name, value);
+                        dropPendingUpdate(name);
+                        triggerPreferenceChange(name, value.string());
                     }
                     break;
-                case CHILD_UPDATED:
-                    triggerPreferenceChange(name, value);
+                }
+                case CHILD_UPDATED: {
+                    final ZkValue value = ZkValue.of(childData);
+                    cacheValue(name, value);
+                    triggerPreferenceUpdate(name, value.string());
                     break;
+                }
                 default:
                     logger.debug("Ignoring zookeeper event: {}", event);
             }
@@ -428,9 +1685,10 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
             final int beforeCount = preferenceChangeListeners.size() + nodeChangeListeners.size();
             action.run();
             final int afterCount = preferenceChangeListeners.size() + nodeChangeListeners.size();
-            if (beforeCount == 0 && afterCount > 0) {
+            if (beforeCount == 0 && afterCount > 0 && !watching) {
                 startWatching();
-            } else if (afterCount == 0 && beforeCount > 0) {
+            } else if (afterCount == 0 && beforeCount > 0 && !cachedValues) {
+                // the cached values depend on the watch, so keep it in that case
                 stopWatching();
             }
         }
@@ -461,21 +1719,77 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
     }
 
     private <L, E> void triggerEvent(Collection<L> listeners, BiConsumer<L, E> handler, E event) {
-        listeners.parallelStream().forEach(listener -> {
-            try {
+        for (L listener : listeners) {
+            events.submit(listener, event, () -> {
                 logger.trace("Notifying listener `{}` of event `{}` in: `{}`", listener, event, this);
                 handler.accept(listener, event);
-            } catch (Exception e) {
-                logger.error("Could not notify listener `" + listener + "` of event `" + event
-                        + "` in:  " + this, e);
-            }
-        });
+            });
+        }
     }
 
     private void triggerChildAdded(String childName) {
+        if (nodeChangeListeners.isEmpty()) {
+            // don't instantiate the child just to build an event nobody listens to
+            return;
+        }
         logger.debug("Notifying {} node listeners that child `{}` was added under `{}`",
                 nodeChangeListeners.size(), childName, this);
-        triggerEvent(nodeChangeListeners, NodeChangeListener::childAdded, new NodeChangeEvent(this, node(childName)));
+        triggerEvent(nodeChangeListeners, NodeChangeListener::childAdded, new NodeChangeEvent(this, addedChild(childName)));
+    }
+
+    /**
+     * Resolves the child reported by a watch event without re-creating it in zookeeper,
+     * as by the time the event is delivered, the child may have been removed already.
+     */
+    private Preferences addedChild(String childName) {
+        synchronized (lock) {
+            for (AbstractPreferences child : cachedChildren()) {
+                if (child.name().equals(childName)) {
+                    return child;
+                }
+            }
+            try {
+                if (!isRemoved() && curator.checkExists().forPath(path(childName)) != null) {
+                    return node(childName);
+                }
+            } catch (Exception e) {
+                logger.warn("Could not check whether child `{}` of {} still exists: {}", childName, this, e.toString());
+            }
+            return new ZkPreferences(this, childName, true);
+        }
+    }
+
+    private boolean pendingChildAdded(String childName, boolean pending) {
+        synchronized (addedChildren) {
+            return pending ? addedChildren.add(childName) : addedChildren.remove(childName);
+        }
+    }
+
+    /**
+     * Notifies the addition of a child created locally, unless the watch did so already.
+     */
+    private void triggerPendingChildAdded(String childName, long czxid) {
+        synchronized (addedChildren) {
+            if (!addedChildren.remove(childName)) {
+                return;
+            }
+            notifiedChildren.put(childName, czxid);
+        }
+        triggerChildAdded(childName);
+    }
+
+    /**
+     * Decides whether a child reported by the watch is to be notified, as it may have been notified already
+     * by {@link #triggerPendingChildAdded(String, long)}.
+     */
+    private boolean watchedChildAdded(String childName, Stat stat) {
+        synchronized (addedChildren) {
+            final Long notified = notifiedChildren.remove(childName);
+            if (notified != null && notified == stat.getCzxid()) {
+                return false;
+            }
+            return addedChildren.remove(childName) || isContainerNode(stat);
+        }
     }
 
     private void triggerChildRemoved(Preferences child) {
@@ -490,6 +1804,76 @@ class ZkPreferences extends AbstractPreferences implements PathChildrenCacheList
         triggerEvent(preferenceChangeListeners, PreferenceChangeListener::preferenceChange, new PreferenceChangeEvent(this, key, value));
     }
 
+    /**
+     * Notifies an update of a preference, unless coalescing is enabled:
+     * then, only the latest of the updates received within the coalescing window gets notified.
+     */
+    private void triggerPreferenceUpdate(String key, String value) {
+        final long window = coalesceMillis >= 0 ? coalesceMillis : dispatcher.getCoalesceMillis();
+        if (window == 0 || value == null || preferenceChangeListeners.isEmpty()) {
+            triggerPreferenceChange(key, value);
+            return;
+        }
+        synchronized (pendingUpdates) {
+            if (pendingUpdates.put(key, value) != null) {
+                dispatcher.coalesced();
+                return;
+            }
+        }
+        dispatcher.schedule(() -> {
+            final List<PreferenceChangeListener> listeners = new ArrayList<>(preferenceChangeListeners);
+            final Object delivery = new Object();
+            final String latest;
+            synchronized (pendingUpdates) {
+                latest = pendingUpdates.remove(key);
+                if (latest == null || listeners.isEmpty()) {
+                    return;
+                }
+                pendingDeliveries.put(key, delivery);
+            }
+            // notified outside of the monitor, so that slow listeners don't hold up the watch; a removal
+            // notified in the meantime is ordered before this update, which is then superseded
+            logger.debug("Notifying {} preference listeners that preference `{}` is now `{}` under `{}`",
+                    listeners.size(), key, latest, this);
+            final AtomicInteger remaining = new AtomicInteger(listeners.size());
+            triggerEvent(listeners, (listener, event) -> {
+                final boolean superseded;
+                synchronized (pendingUpdates) {
+                    superseded = pendingDeliveries.get(key) != delivery;
+                    if (remaining.decrementAndGet() == 0) {
+                        pendingDeliveries.remove(key, delivery);
+                    }
+                }
+                if (superseded) {
+                    dispatcher.coalesced();
+                } else {
+                    listener.preferenceChange(event);
+                }
+            }, new PreferenceChangeEvent(this, key, latest));
+        }, window);
+    }
+
+    /**
+     * Discards the pending update of a preference, superseded by its removal or re-creation,
+     * along with the updates still being notified.
+     */
+    private void dropPendingUpdate(String key) {
+        synchronized (pendingUpdates) {
+            if (pendingUpdates.remove(key) != null) {
+                dispatcher.coalesced();
+            }
+            pendingDeliveries.remove(key);
+        }
+    }
+
+    /**
+     * Sets the time window for coalescing the updates of the preferences of this node.
+     * @param millis the window; 0 disables coalescing and a negative value restores the default of the dispatcher
+     */
+    void coalesceUpdates(long millis) {
+        coalesceMillis = millis;
+    }
+
     private void triggerPreferenceDropped(String key) {
         triggerPreferenceChange(key, null);
     }
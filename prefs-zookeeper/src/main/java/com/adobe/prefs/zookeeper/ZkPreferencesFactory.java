@@ -1,9 +1,19 @@
 package com.adobe.prefs.zookeeper;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.prefs.PreferencesFactory;
+import java.util.stream.Collectors;
 
 /**
  * PreferencesFactory implementation that returns preferences stored in zookeeper.
@@ -14,6 +24,7 @@ public class ZkPreferencesFactory implements PreferencesFactory {
 
     private final ZkPreferences userRoot;
     private final ZkPreferences systemRoot;
+    private final ZkWarmUp warmUp;
 
     public ZkPreferencesFactory() {
         this(systemRootPath(), userRootPath());
@@ -21,10 +32,73 @@ public class ZkPreferencesFactory implements PreferencesFactory {
 
     protected ZkPreferencesFactory(String systemRootPath, String userRootPath) {
         final boolean encodedBinary = Boolean.parseBoolean(System.getProperty("prefs.zk.binary.base64_encoded", "true"));
-        logger.info("Zookeeper prefs factory initialized with system root: {} and user root: {}",
-                systemRootPath, userRootPath);
-        userRoot = new ZkPreferences(ZkManager.curatorFacade(userRootPath), encodedBinary, true);
-        systemRoot = new ZkPreferences(ZkManager.curatorFacade(systemRootPath), encodedBinary, false);
+        final boolean cachedValues = Boolean.parseBoolean(System.getProperty("prefs.zk.cache.values", "false"));
+        logger.info("Zookeeper prefs factory initialized with system root: {} (on {}) and user root: {} (on {})",
+                systemRootPath, ZkManager.quorum(systemRootPath), userRootPath, ZkManager.quorum(userRootPath));
+        final boolean treeCache = Boolean.parseBoolean(System.getProperty("prefs.zk.cache.tree", "false"));
+        userRoot = root(ZkManager.curatorFacade(userRootPath), encodedBinary, true, cachedValues, treeCache);
+        systemRoot = root(ZkManager.curatorFacade(systemRootPath), encodedBinary, false, cachedValues, treeCache);
+        warmUp = warmUp(userRoot, systemRoot);
+        ZkManager.warmUp(warmUp);
+    }
+
+    /**
+     * Starts prefetching the subtrees listed (comma separated) in {@code prefs.zk.warmup.user}
+     * and {@code prefs.zk.warmup.system}, with up to {@code prefs.zk.warmup.threads} of them (4 by default)
+     * being read in parallel.
+     * The factory waits up to {@code prefs.zk.warmup.wait_ms} (0 by default) for the warm-up to be over.
+     */
+    private static ZkWarmUp warmUp(ZkPreferences userRoot, ZkPreferences systemRoot) {
+        final Map<ZkPreferences, List<String>> roots = new LinkedHashMap<>();
+        roots.put(userRoot, paths(System.getProperty("prefs.zk.warmup.user", "")));
+        roots.put(systemRoot, paths(System.getProperty("prefs.zk.warmup.system", "")));
+        if (roots.values().stream().allMatch(List::isEmpty)) {
+            return ZkWarmUp.none();
+        }
+        final int threads = Integer.parseInt(System.getProperty("prefs.zk.warmup.threads", "4"));
+        final int concurrency = Integer.parseInt(System.getProperty("prefs.zk.snapshot.concurrency", "1000"));
+        final long waitMillis = Long.parseLong(System.getProperty("prefs.zk.warmup.wait_ms", "0"));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("zk-prefs-warmup-%d").setDaemon(true).build());
+        final ZkWarmUp warmUp = ZkWarmUp.start(roots, concurrency, executor);
+        executor.shutdown();
+        if (waitMillis > 0) {
+            try {
+                if (!warmUp.await(waitMillis, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Preferences warm-up not over after {} ms, carrying on in the background", waitMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return warmUp;
+    }
+
+    private static List<String> paths(String paths) {
+        return Arrays.stream(paths.split(","))
+                .map(String::trim)
+                .filter(path -> !path.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Creates a root node; in tree cache mode, all its nodes share a single cache of the whole tree,
+     * instead of each watched node having its own.
+     */
+    private static ZkPreferences root(CuratorFramework curator, boolean encodedBinary, boolean userNode,
+                                      boolean cachedValues, boolean treeCache) {
+        if (!treeCache) {
+            return new ZkPreferences(curator, encodedBinary, userNode, cachedValues);
+        }
+        final ZkTreeCache tree = new ZkTreeCache(curator);
+        final ZkPreferences root = new ZkPreferences(curator, encodedBinary, userNode, cachedValues, tree::watch);
+        try {
+            tree.start();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to start the tree cache of " + curator.getNamespace(), e);
+        }
+        return root;
     }
 
     @Override
@@ -37,6 +111,13 @@ public class ZkPreferencesFactory implements PreferencesFactory {
         return userRoot;
     }
 
+    /**
+     * @return the prefetching of the subtrees configured with {@code prefs.zk.warmup.*}
+     */
+    public ZkWarmUp warmUp() {
+        return warmUp;
+    }
+
     static String systemRootPath() {
         return System.getProperty("java.util.prefs.systemRoot", "/prefs/sys");
     }
@@ -0,0 +1,101 @@
+package com.adobe.prefs.zookeeper;
+
+import com.google.common.base.Preconditions;
+import org.apache.curator.framework.CuratorFramework;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import static com.adobe.prefs.zookeeper.ZkUtils.namespace;
+
+/**
+ * Routes the preference roots to the zookeeper quorums storing them and holds the client of each quorum.
+ * <p>
+ * A root is served by the quorum of the longest route prefix matching its path (on whole path segments),
+ * or by the default quorum when none matches. All the roots of a quorum share a single client: the watches,
+ * cached values and reads of a root rely on the ordering guarantees of a single zookeeper session
+ * (e.g. reading one's own writes), which don't hold across sessions. This only routes the roots, so the throughput
+ * of a root is that of a session; spreading the load takes more quorums (or more observers behind a quorum).
+ * The clients are only created (and started) when first needed.
+ */
+final class ZkQuorums {
+    private static final Logger logger = LoggerFactory.getLogger(ZkQuorums.class);
+
+    private final String defaultQuorum;
+    // quorums by the namespace of their prefix, longest prefixes first
+    private final Map<String, String> routes;
+    private final Function<String, CuratorFramework> clients;
+    private final ConcurrentMap<String, CuratorFramework> started = new ConcurrentHashMap<>();
+
+    /**
+     * @param defaultQuorum the quorum of the roots not matching any route
+     * @param routes the quorums by path prefix
+     * @param clients creates and starts a client of a quorum
+     */
+    ZkQuorums(String defaultQuorum, Map<String, String> routes, Function<String, CuratorFramework> clients) {
+        this.defaultQuorum = defaultQuorum;
+        final Map<String, String> sorted = new LinkedHashMap<>();
+        routes.entrySet().stream()
+                .sorted((a, b) -> Integer.compare(prefix(b.getKey()).length(), prefix(a.getKey()).length()))
+                .forEach(route -> sorted.put(prefix(route.getKey()), route.getValue()));
+        this.routes = Collections.unmodifiableMap(sorted);
+        this.clients = clients;
+    }
+
+    /**
+     * Parses the routes, given as semicolon separated {@code prefix=quorum} pairs
+     * (e.g. {@code /prefs/sys=zk1:2181,zk2:2181;/prefs/usr=zk3:2181}).
+     */
+    static Map<String, String> routes(String routes) {
+        final Map<String, String> parsed = new LinkedHashMap<>();
+        for (String route : routes.split(";")) {
+            if (route.trim().isEmpty()) {
+                continue;
+            }
+            final int separator = route.indexOf('=');
+            Preconditions.checkArgument(separator > 0 && separator < route.length() - 1, "Invalid route: %s", route);
+            parsed.put(route.substring(0, separator).trim(), route.substring(separator + 1).trim());
+        }
+        return parsed;
+    }
+
+    private static String prefix(String path) {
+        final String prefix = namespace(path);
+        return prefix != null ? prefix : "";
+    }
+
+    /**
+     * @return the quorum storing the given root path
+     */
+    String quorum(String rootPath) {
+        final String path = prefix(rootPath);
+        for (Map.Entry<String, String> route : routes.entrySet()) {
+            final String prefix = route.getKey();
+            if (prefix.isEmpty() || path.equals(prefix) || path.startsWith(prefix + "/")) {
+                return route.getValue();
+            }
+        }
+        return defaultQuorum;
+    }
+
+    /**
+     * @return the client of the quorum storing the given path, the same one on every call
+     */
+    CuratorFramework client(String path) {
+        return started.computeIfAbsent(quorum(path), quorum -> {
+            logger.info("Initializing the Zookeeper client for quorum: {}", quorum);
+            return clients.apply(quorum);
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "ZkQuorums{default=" + defaultQuorum + ", routes=" + routes + "}";
+    }
+}
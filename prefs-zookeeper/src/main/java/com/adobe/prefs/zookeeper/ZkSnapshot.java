@@ -0,0 +1,323 @@
+package com.adobe.prefs.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import static com.adobe.prefs.zookeeper.ZkPreferences.CHILD_MARKER;
+import static com.adobe.prefs.zookeeper.ZkPreferences.isContainerNode;
+import static com.adobe.prefs.zookeeper.ZkPreferences.isValueNode;
+import static com.adobe.prefs.zookeeper.ZkUtils.basename;
+import static com.adobe.prefs.zookeeper.ZkUtils.inBackground;
+import static org.apache.curator.utils.ZKPaths.makePath;
+
+/**
+ * Immutable view of a whole preferences subtree, indexed by the absolute paths of its nodes,
+ * as returned by {@link ZkManager#snapshot(Preferences)}, or of a single node along with the names of its children,
+ * as returned by {@link ZkManager#snapshotNode(Preferences)}.
+ * <p>
+ * The zookeeper subtree is read breadth-first with background requests, keeping a bounded number of them in flight,
+ * so the time it takes depends on the zookeeper throughput rather than on its latency.
+ * Since the nodes are read one by one, the snapshot is not atomic: concurrent changes may or may not be seen,
+ * but the version of every value tells which update it reflects.
+ */
+public final class ZkSnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(ZkSnapshot.class);
+
+    /**
+     * A preference value, along with the version of the zookeeper node holding it
+     * (-1 when the preferences are not stored in zookeeper).
+     * The values read from zookeeper are only decoded when first used.
+     */
+    public static final class Entry {
+        // the value, when not read from zookeeper
+        private final String value;
+        // the znode data, when read from zookeeper
+        final ZkValue data;
+
+        private Entry(String value, ZkValue data) {
+            this.value = value;
+            this.data = data;
+        }
+
+        Entry(String value) {
+            this(value, null);
+        }
+
+        Entry(ZkValue data) {
+            this(null, data);
+        }
+
+        public String value() {
+            return data != null ? data.string() : value;
+        }
+
+        public int version() {
+            return data != null ? data.version : -1;
+        }
+
+        @Override
+        public String toString() {
+            return value() + "@v" + version();
+        }
+    }
+
+    private final String rootPath;
+    private final Map<String, Map<String, Entry>> nodes;
+    private final int requests;
+
+    private ZkSnapshot(String rootPath, Map<String, Map<String, Entry>> nodes, int requests) {
+        this.rootPath = rootPath;
+        this.nodes = nodes;
+        this.requests = requests;
+    }
+
+    /**
+     * @return the absolute path of the node the snapshot was taken of
+     */
+    public String rootPath() {
+        return rootPath;
+    }
+
+    /**
+     * @return the absolute paths of all the nodes of the subtree, breadth-first and sorted by name within each level;
+     * the children of a node read without its descendants are listed, although their entries were not read
+     */
+    public Set<String> nodePaths() {
+        return nodes.keySet();
+    }
+
+    /**
+     * @param path the absolute path of a node
+     * @return the names of the children of the node, sorted
+     */
+    public List<String> childrenNames(String path) {
+        final String prefix = path.endsWith("/") ? path : path + '/';
+        return nodes.keySet().stream()
+                .filter(child -> child.length() > prefix.length() && child.startsWith(prefix)
+                        && child.indexOf('/', prefix.length()) < 0)
+                .map(child -> child.substring(prefix.length()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the number of zookeeper requests it took to read the snapshot (0 if not stored in zookeeper)
+     */
+    public int requests() {
+        return requests;
+    }
+
+    public boolean nodeExists(String path) {
+        return nodes.containsKey(path);
+    }
+
+    /**
+     * @param path the absolute path of a node
+     * @return the preferences of the node, sorted by key; empty if the node is not part of the snapshot
+     */
+    public Map<String, Entry> entries(String path) {
+        final Map<String, Entry> entries = nodes.get(path);
+        return entries != null ? entries : Collections.emptyMap();
+    }
+
+    /**
+     * @see Preferences#get(String, String)
+     */
+    public String get(String path, String key, String def) {
+        final Entry entry = entries(path).get(key);
+        return entry != null ? entry.value() : def;
+    }
+
+    /**
+     * @return the version of the preference, or -1 if it is missing
+     */
+    public int version(String path, String key) {
+        final Entry entry = entries(path).get(key);
+        return entry != null ? entry.version() : -1;
+    }
+
+    /**
+     * @return the number of preferences in the whole subtree
+     */
+    public int size() {
+        return nodes.values().stream().mapToInt(Map::size).sum();
+    }
+
+    @Override
+    public String toString() {
+        return "Snapshot of " + rootPath + ": " + nodes;
+    }
+
+    /**
+     * Reads a zookeeper node, along with its descendants when {@code deep}, with at most {@code concurrency}
+     * requests in flight.
+     */
+    static ZkSnapshot read(ZkPreferences node, int concurrency, boolean deep) throws BackingStoreException {
+        if (!node.nodeExists("")) {
+            throw new IllegalStateException("Node has been removed.");
+        }
+        final long start = System.nanoTime();
+        final Reader reader = new Reader(node.curator, concurrency, deep);
+        try {
+            final ZkSnapshot snapshot = reader.read(node.absolutePath());
+            if (deep) {
+                logger.info("Read a snapshot of {} entries of {} nodes from {} in {} ms with {} requests",
+                        snapshot.size(), snapshot.nodes.size(), node,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), reader.requests);
+            }
+            return snapshot;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BackingStoreException(e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BackingStoreException(e);
+        }
+    }
+
+    /**
+     * Walks a node (and its subtree when {@code deep}) through the {@link Preferences} API,
+     * for the stores other than zookeeper.
+     */
+    static ZkSnapshot walk(Preferences node, boolean deep) throws BackingStoreException {
+        final Map<String, Map<String, Entry>> nodes = new TreeMap<>(BREADTH_FIRST);
+        final Deque<Preferences> queue = new ArrayDeque<>();
+        queue.add(node);
+        while (!queue.isEmpty()) {
+            final Preferences current = queue.poll();
+            final Map<String, Entry> entries = new TreeMap<>();
+            for (String key : current.keys()) {
+                final String value = current.get(key, null);
+                if (value != null) {
+                    entries.put(key, new Entry(value));
+                }
+            }
+            nodes.put(current.absolutePath(), entries);
+            for (String child : current.childrenNames()) {
+                if (deep) {
+                    queue.add(current.node(child));
+                } else {
+                    nodes.put(current.node(child).absolutePath(), new TreeMap<>());
+                }
+            }
+        }
+        return snapshot(node.absolutePath(), nodes, 0);
+    }
+
+    private static final Comparator<String> BREADTH_FIRST = Comparator
+            .comparingLong((String path) -> path.chars().filter(c -> c == '/').count() - (path.equals("/") ? 1 : 0))
+            .thenComparing(Comparator.naturalOrder());
+
+    private static ZkSnapshot snapshot(String rootPath, Map<String, Map<String, Entry>> nodes, int requests) {
+        final Map<String, Map<String, Entry>> immutable = new LinkedHashMap<>();
+        nodes.forEach((path, entries) -> immutable.put(path, Collections.unmodifiableMap(entries)));
+        return new ZkSnapshot(rootPath, Collections.unmodifiableMap(immutable), requests);
+    }
+
+    /**
+     * Sends the requests in the order they are planned (listing the children of a node, then reading each of them,
+     * then listing the children of the child nodes) and processes their results in the calling thread,
+     * so no state is shared with the zookeeper event thread besides the queue of completed requests.
+     */
+    private static final class Reader {
+        private final CuratorFramework curator;
+        private final int concurrency;
+        private final boolean deep;
+        private final long timeout;
+        private final Deque<Supplier<CompletableFuture<Runnable>>> pending = new ArrayDeque<>();
+        private final BlockingQueue<CompletableFuture<Runnable>> completed = new LinkedBlockingQueue<>();
+        private final Map<String, Map<String, Entry>> nodes = new TreeMap<>(BREADTH_FIRST);
+        private int inFlight;
+        private int requests;
+
+        Reader(CuratorFramework curator, int concurrency, boolean deep) {
+            this.curator = curator;
+            this.concurrency = concurrency;
+            this.deep = deep;
+            this.timeout = curator.getZookeeperClient().getConnectionTimeoutMs();
+        }
+
+        ZkSnapshot read(String rootPath) throws Exception {
+            nodes.put(rootPath, new TreeMap<>());
+            pending.add(() -> children(rootPath));
+            while (!pending.isEmpty() || inFlight > 0) {
+                while (inFlight < concurrency && !pending.isEmpty()) {
+                    final CompletableFuture<Runnable> request = pending.poll().get();
+                    request.whenComplete((result, e) -> completed.add(request));
+                    inFlight++;
+                    requests++;
+                }
+                final CompletableFuture<Runnable> done = completed.poll(timeout, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    throw new TimeoutException("Timed out reading a preferences snapshot");
+                }
+                inFlight--;
+                try {
+                    done.join().run();
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+            return snapshot(rootPath, nodes, requests);
+        }
+
+        private CompletableFuture<Runnable> children(String path) {
+            return inBackground(path, CuratorEvent::getChildren, Collections.<String>emptyList(),
+                    callback -> curator.getChildren().inBackground(callback).forPath(path))
+                    .thenApply(children -> () -> onChildren(path, children));
+        }
+
+        private CompletableFuture<Runnable> data(String parent, String path) {
+            return inBackground(path, event -> new ChildData(path, event.getStat(), event.getData()), null,
+                    callback -> curator.getData().inBackground(callback).forPath(path))
+                    .thenApply(child -> () -> onData(parent, child));
+        }
+
+        private void onChildren(String path, List<String> children) {
+            for (String child : children) {
+                if (!CHILD_MARKER.equals(child) && !ZkChunks.isChunk(child)) {
+                    pending.add(() -> data(path, makePath(path, child)));
+                }
+            }
+        }
+
+        private void onData(String parent, ChildData child) {
+            if (child == null) {
+                // removed in the meantime
+                return;
+            }
+            if (isValueNode(child.getStat())) {
+                nodes.get(parent).put(basename(child.getPath()), new Entry(ZkValue.of(child)));
+            }
+            if (isContainerNode(child.getStat())) {
+                nodes.put(child.getPath(), new TreeMap<>());
+                if (deep) {
+                    pending.add(() -> children(child.getPath()));
+                }
+            }
+        }
+    }
+}
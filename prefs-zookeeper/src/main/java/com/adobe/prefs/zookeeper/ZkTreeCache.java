@@ -0,0 +1,141 @@
+package com.adobe.prefs.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+import org.apache.curator.framework.recipes.cache.TreeCacheSelector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.adobe.prefs.zookeeper.ZkUtils.basename;
+import static org.apache.curator.utils.ZKPaths.getPathAndNode;
+
+/**
+ * A single recursive cache of a whole preferences root, shared by all its watched nodes.
+ * <p>
+ * The events of the {@link TreeCache} are translated to children events and handed to the node watching
+ * the parent of the changed znode (if any), while the connection state events are handed to all the watching nodes.
+ * This way, the zookeeper watches, the cached data and the threads only depend on the size of the tree,
+ * and not on the number of preference nodes being watched. The chunks of the values are left out of the cache.
+ */
+class ZkTreeCache implements TreeCacheListener, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ZkTreeCache.class);
+
+    private final CuratorFramework curator;
+    private final TreeCache cache;
+    private final ConcurrentMap<String, PathChildrenCacheListener> listeners = new ConcurrentHashMap<>();
+
+    ZkTreeCache(CuratorFramework curator) {
+        this.curator = curator;
+        cache = TreeCache.newBuilder(curator, "/").setCacheData(true).setSelector(new TreeCacheSelector() {
+            @Override
+            public boolean traverseChildren(String fullPath) {
+                return true;
+            }
+
+            @Override
+            public boolean acceptChild(String fullPath) {
+                // the chunks are only read as streams, never through the cache
+                return !ZkChunks.isChunk(basename(fullPath));
+            }
+        }).build();
+        cache.getListenable().addListener(this);
+    }
+
+    void start() throws Exception {
+        cache.start();
+        logger.info("Started zookeeper tree cache for {}", curator.getNamespace());
+    }
+
+    /**
+     * Returns a watch for the children of the given path, backed by this cache.
+     */
+    ZkWatch watch(String path) {
+        return new ZkWatch() {
+            private volatile PathChildrenCacheListener listener;
+
+            @Override
+            public void start(PathChildrenCacheListener listener) {
+                this.listener = listener;
+                listeners.put(path, listener);
+            }
+
+            @Override
+            public ChildData getCurrentData(String childPath) {
+                return cache.getCurrentData(childPath);
+            }
+
+            @Override
+            public void close() {
+                // the path may already be watched by a newer node instance
+                listeners.remove(path, listener);
+            }
+        };
+    }
+
+    int watchedNodes() {
+        return listeners.size();
+    }
+
+    @Override
+    public void childEvent(CuratorFramework client, TreeCacheEvent event) {
+        switch (event.getType()) {
+            case NODE_ADDED:
+                dispatch(PathChildrenCacheEvent.Type.CHILD_ADDED, event.getData());
+                break;
+            case NODE_UPDATED:
+                dispatch(PathChildrenCacheEvent.Type.CHILD_UPDATED, event.getData());
+                break;
+            case NODE_REMOVED:
+                dispatch(PathChildrenCacheEvent.Type.CHILD_REMOVED, event.getData());
+                break;
+            case CONNECTION_SUSPENDED:
+                broadcast(PathChildrenCacheEvent.Type.CONNECTION_SUSPENDED);
+                break;
+            case CONNECTION_LOST:
+                broadcast(PathChildrenCacheEvent.Type.CONNECTION_LOST);
+                break;
+            case CONNECTION_RECONNECTED:
+                broadcast(PathChildrenCacheEvent.Type.CONNECTION_RECONNECTED);
+                break;
+            default:
+                logger.debug("Ignoring tree cache event: {}", event);
+        }
+    }
+
+    private void dispatch(PathChildrenCacheEvent.Type type, ChildData data) {
+        if (data == null || data.getPath() == null || "/".equals(data.getPath())) {
+            return;
+        }
+        final PathChildrenCacheListener listener = listeners.get(getPathAndNode(data.getPath()).getPath());
+        if (listener != null) {
+            notify(listener, new PathChildrenCacheEvent(type, data));
+        }
+    }
+
+    private void broadcast(PathChildrenCacheEvent.Type type) {
+        final PathChildrenCacheEvent event = new PathChildrenCacheEvent(type, null);
+        listeners.values().forEach(listener -> notify(listener, event));
+    }
+
+    private void notify(PathChildrenCacheListener listener, PathChildrenCacheEvent event) {
+        try {
+            listener.childEvent(curator, event);
+        } catch (Exception e) {
+            logger.error("Could not handle event `" + event + "` in: " + listener, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        cache.close();
+    }
+}
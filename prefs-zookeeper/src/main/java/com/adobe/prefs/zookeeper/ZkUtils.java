@@ -1,6 +1,13 @@
 package com.adobe.prefs.zookeeper;
 
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
 
@@ -37,6 +44,38 @@ final class ZkUtils {
         return path.substring(path.lastIndexOf(PATH_SEP) + 1);
     }
 
+    /**
+     * Sends a request in the background, completing the returned future with the result extracted from
+     * the successful response, with {@code missing} if the node does not exist, or with the zookeeper error.
+     */
+    static <T> CompletableFuture<T> inBackground(String path, Function<CuratorEvent, T> result, T missing,
+                                                 BackgroundRequest request) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            request.send((client, event) -> {
+                final Code code = Code.get(event.getResultCode());
+                try {
+                    if (code == Code.OK) {
+                        future.complete(result.apply(event));
+                    } else if (code == Code.NONODE) {
+                        future.complete(missing);
+                    } else {
+                        future.completeExceptionally(KeeperException.create(code, path));
+                    }
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    interface BackgroundRequest {
+        void send(BackgroundCallback callback) throws Exception;
+    }
+
     static String namespace(String path) {
         if (isNullOrEmpty(path)) {
             return null;
@@ -0,0 +1,179 @@
+package com.adobe.prefs.zookeeper;
+
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.Base64;
+import java.util.function.Function;
+
+/**
+ * Immutable snapshot of a preference value as last seen in zookeeper.
+ * <p>
+ * Besides the data (decompressed if need be), it keeps the `mzxid` of the znode, so that updates coming from different sources
+ * (local reads, local writes and watch events) can be ordered and a stale value never replaces a newer one.
+ * A <em>removed</em> value is a tombstone that shadows any older value of the same key.
+ * A value stored in chunks (see {@link ZkChunks}) only keeps its manifest, as it's only read as a stream:
+ * it has no data, so it reads as missing through the string and byte array getters.
+ * <p>
+ * As a version of the value never changes, its decoded and parsed forms are memoised on first use,
+ * so repeated reads of a cached value neither decode, parse nor copy it again.
+ * The data array is shared with the readers and must never be modified.
+ */
+final class ZkValue {
+    private static final Object UNPARSEABLE = new Object();
+
+    final byte[] data;
+    final int version;
+    final long mzxid;
+    final boolean removed;
+    // the manifest of a value stored in chunks
+    final ZkChunks.Manifest manifest;
+    private volatile String string;
+    private volatile byte[] binary;
+    // the value parsed as each of the types it was requested as, or UNPARSEABLE
+    private volatile Object parsedInteger;
+    private volatile Object parsedLong;
+    private volatile Object parsedBoolean;
+    private volatile Object parsedDouble;
+
+    private ZkValue(byte[] data, int version, long mzxid, boolean removed, ZkChunks.Manifest manifest) {
+        this.data = data;
+        this.version = version;
+        this.mzxid = mzxid;
+        this.removed = removed;
+        this.manifest = manifest;
+    }
+
+    /**
+     * @param data as stored in zookeeper, possibly compressed (see {@link ZkCompression})
+     */
+    static ZkValue of(byte[] data, Stat stat) {
+        if (!ZkCompression.isFramed(data)) {
+            return written(data, stat);
+        }
+        final ZkChunks.Manifest manifest = ZkChunks.Manifest.parse(data);
+        return manifest != null ? chunked(manifest, stat) : written(ZkCompression.decode(data), stat);
+    }
+
+    /**
+     * @param data the value as written, before compression
+     */
+    static ZkValue written(byte[] data, Stat stat) {
+        return new ZkValue(data, stat.getVersion(), stat.getMzxid(), false, null);
+    }
+
+    static ZkValue chunked(ZkChunks.Manifest manifest, Stat stat) {
+        return new ZkValue(null, stat.getVersion(), stat.getMzxid(), false, manifest);
+    }
+
+    static ZkValue of(ChildData childData) {
+        return of(childData.getData(), childData.getStat());
+    }
+
+    static ZkValue removed(long mzxid) {
+        return new ZkValue(null, -1, mzxid, true, null);
+    }
+
+    /**
+     * A tombstone for a key found missing by a read, which does not tell when it was removed,
+     * so it's older than any value of the key (and does not shadow those the watch has already delivered).
+     */
+    static ZkValue missing() {
+        return removed(0);
+    }
+
+    /**
+     * @return the data decoded as a string
+     */
+    String string() {
+        String string = this.string;
+        if (string == null && data != null) {
+            // racing threads decode the same string, so either copy is fine
+            this.string = string = ZkUtils.string(data);
+        }
+        return string;
+    }
+
+    /**
+     * @return the data decoded from Base64, or null if it is not valid Base64
+     */
+    byte[] binary() {
+        byte[] binary = this.binary;
+        if (binary == null && data != null) {
+            try {
+                this.binary = binary = Base64.getDecoder().decode(data);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return binary;
+    }
+
+    /**
+     * Parses the string value as the given type, only once per type: each of the types of the typed getters
+     * has its own slot, so a value read alternately as several types is not parsed again either.
+     * Other types are parsed on every call.
+     *
+     * @param parser returns null or throws {@link IllegalArgumentException} if the value cannot be parsed
+     * @return the parsed value, or null if it is missing or cannot be parsed
+     */
+    <T> T parsed(Class<T> type, Function<String, T> parser) {
+        final Object parsed = parsedSlot(type);
+        if (parsed != null) {
+            return parsed != UNPARSEABLE ? type.cast(parsed) : null;
+        }
+        final String string = string();
+        if (string == null) {
+            return null;
+        }
+        T value;
+        try {
+            value = parser.apply(string);
+        } catch (IllegalArgumentException e) {
+            value = null;
+        }
+        // racing threads parse the same value, so either one is fine
+        setParsedSlot(type, value != null ? value : UNPARSEABLE);
+        return value;
+    }
+
+    private Object parsedSlot(Class<?> type) {
+        if (type == Integer.class) {
+            return parsedInteger;
+        } else if (type == Long.class) {
+            return parsedLong;
+        } else if (type == Boolean.class) {
+            return parsedBoolean;
+        } else if (type == Double.class) {
+            return parsedDouble;
+        }
+        return null;
+    }
+
+    private void setParsedSlot(Class<?> type, Object parsed) {
+        if (type == Integer.class) {
+            parsedInteger = parsed;
+        } else if (type == Long.class) {
+            parsedLong = parsed;
+        } else if (type == Boolean.class) {
+            parsedBoolean = parsed;
+        } else if (type == Double.class) {
+            parsedDouble = parsed;
+        }
+    }
+
+    /**
+     * Picks the most recent of two values of the same key; on a tie, tombstones win.
+     */
+    static ZkValue latest(ZkValue current, ZkValue candidate) {
+        if (candidate.mzxid > current.mzxid || (candidate.mzxid == current.mzxid && candidate.removed)) {
+            return candidate;
+        }
+        return current;
+    }
+
+    @Override
+    public String toString() {
+        return (removed ? "removed" : manifest != null ? "chunked v" + version : "v" + version) + "@" + mzxid;
+    }
+}
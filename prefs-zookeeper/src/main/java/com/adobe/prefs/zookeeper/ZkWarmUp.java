@@ -0,0 +1,154 @@
+package com.adobe.prefs.zookeeper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.prefs.BackingStoreException;
+
+/**
+ * Prefetches some subtrees of the preferences when the {@link ZkPreferencesFactory} is created,
+ * so the first reads after a deploy are answered from the node and value caches instead of stalling on zookeeper.
+ * <p>
+ * Each subtree is read in bulk with a {@link ZkSnapshot}, in parallel with the other ones, after which its nodes
+ * are created. With {@code prefs.zk.cache.values}, the nodes start being watched, and the subtree is read once more
+ * to seed their value caches: the changes made after the first read could otherwise be missed by the watches.
+ * The progress is available from {@link ZkManager#warmUp()}, so that traffic can be held back until it is ready.
+ */
+public final class ZkWarmUp {
+    private static final Logger logger = LoggerFactory.getLogger(ZkWarmUp.class);
+
+    private final List<String> paths;
+    private final CompletableFuture<Void> done;
+    private final long start = System.nanoTime();
+    private volatile long elapsedMillis = -1;
+    private volatile boolean failed;
+    private final AtomicInteger nodes = new AtomicInteger();
+    private final AtomicInteger entries = new AtomicInteger();
+
+    private ZkWarmUp(Map<ZkPreferences, List<String>> roots, int concurrency, Executor executor) {
+        final List<String> paths = new ArrayList<>();
+        final List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        roots.forEach((root, rootPaths) -> {
+            for (String path : rootPaths) {
+                paths.add((root.isUserNode() ? "user:" : "system:") + path);
+                tasks.add(CompletableFuture.runAsync(() -> warmUp(root, path, concurrency), executor));
+            }
+        });
+        this.paths = Collections.unmodifiableList(paths);
+        this.done = CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((result, e) -> {
+                    elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    if (!this.paths.isEmpty()) {
+                        logger.info("Warmed up {} nodes with {} entries of {} in {} ms",
+                                nodes.get(), entries.get(), this.paths, elapsedMillis);
+                    }
+                });
+    }
+
+    /**
+     * Starts prefetching the given paths of each root node.
+     */
+    static ZkWarmUp start(Map<ZkPreferences, List<String>> roots, int concurrency, Executor executor) {
+        return new ZkWarmUp(roots, concurrency, executor);
+    }
+
+    /**
+     * @return a warm-up with nothing to prefetch
+     */
+    static ZkWarmUp none() {
+        return new ZkWarmUp(Collections.emptyMap(), 1, Runnable::run);
+    }
+
+    private void warmUp(ZkPreferences root, String path, int concurrency) {
+        try {
+            if (!root.nodeExists(path)) {
+                logger.warn("Skipping the warm-up of the missing node {} of {}", path, root);
+                return;
+            }
+            final ZkPreferences subtree = (ZkPreferences) root.node(path);
+            final ZkSnapshot structure = ZkSnapshot.read(subtree, concurrency, true);
+            // the snapshot is breadth-first, so the parents are created before their children
+            boolean cachedValues = false;
+            for (String nodePath : structure.nodePaths()) {
+                cachedValues |= ((ZkPreferences) root.node(nodePath)).startCaching();
+            }
+            // the values are read again once watched, so that any later change is seen by the watches
+            final ZkSnapshot snapshot = cachedValues ? ZkSnapshot.read(subtree, concurrency, true) : structure;
+            for (String nodePath : structure.nodePaths()) {
+                final Map<String, ZkSnapshot.Entry> nodeEntries = snapshot.entries(nodePath);
+                ((ZkPreferences) root.node(nodePath)).warmUp(nodeEntries);
+                nodes.incrementAndGet();
+                entries.addAndGet(nodeEntries.size());
+            }
+        } catch (BackingStoreException | RuntimeException e) {
+            failed = true;
+            logger.warn("Failed to warm up the node {} of {}", path, root, e);
+        }
+    }
+
+    /**
+     * @return the paths being prefetched, prefixed by the type of their root ({@code user:} or {@code system:})
+     */
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @return whether the warm-up is over, even if some subtrees could not be prefetched
+     */
+    public boolean isReady() {
+        return done.isDone();
+    }
+
+    /**
+     * @return whether some subtrees could not be prefetched; these will be read on demand instead
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Waits for the warm-up to be over.
+     *
+     * @return whether the warm-up is over
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            done.get(timeout, unit);
+        } catch (ExecutionException | TimeoutException e) {
+            // failures are only logged
+        }
+        return isReady();
+    }
+
+    /**
+     * @return the duration of the warm-up, or the time elapsed so far while it is not ready
+     */
+    public long getElapsedMillis() {
+        final long elapsed = elapsedMillis;
+        return elapsed >= 0 ? elapsed : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    public int getNodeCount() {
+        return nodes.get();
+    }
+
+    public int getEntryCount() {
+        return entries.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Warm-up of " + paths + (isReady() ? " ready in " + getElapsedMillis() + " ms" : " in progress");
+    }
+}
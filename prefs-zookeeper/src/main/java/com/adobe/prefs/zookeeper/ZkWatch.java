@@ -0,0 +1,61 @@
+package com.adobe.prefs.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import static com.adobe.prefs.zookeeper.ZkUtils.basename;
+
+/**
+ * Source of the zookeeper events concerning the children of a single preference node.
+ * <p>
+ * By default, every watched node gets its own {@link PathChildrenCache}
+ * (with its own zookeeper watches, executor and copy of the children data, except for the chunks of the values).
+ * Alternatively, all the nodes of a root can share a single {@link ZkTreeCache}.
+ */
+interface ZkWatch extends Closeable {
+
+    /**
+     * Starts delivering the events concerning the children of the watched node to the given listener.
+     */
+    void start(PathChildrenCacheListener listener) throws Exception;
+
+    /**
+     * Returns the last known data of a child of the watched node, or null if not known.
+     */
+    ChildData getCurrentData(String path);
+
+    static ZkWatch pathChildrenCache(CuratorFramework curator, String path) {
+        final PathChildrenCache pcc = new PathChildrenCache(curator, path, true);
+        return new ZkWatch() {
+            @Override
+            public void start(PathChildrenCacheListener listener) throws Exception {
+                // register before starting, so that no event gets lost
+                pcc.getListenable().addListener((client, event) -> {
+                    final ChildData data = event.getData();
+                    if (data != null && ZkChunks.isChunk(basename(data.getPath()))) {
+                        // the chunks are only read as streams, so their data is not kept around
+                        pcc.clearDataBytes(data.getPath());
+                    } else {
+                        listener.childEvent(client, event);
+                    }
+                });
+                pcc.start();
+            }
+
+            @Override
+            public ChildData getCurrentData(String path) {
+                return pcc.getCurrentData(path);
+            }
+
+            @Override
+            public void close() throws IOException {
+                pcc.close();
+            }
+        };
+    }
+}
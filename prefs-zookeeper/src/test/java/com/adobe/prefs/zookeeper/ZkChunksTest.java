@@ -0,0 +1,280 @@
+package com.adobe.prefs.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+
+import static com.adobe.prefs.zookeeper.ZkUtils.basename;
+import static com.adobe.prefs.zookeeper.ZkUtils.bytes;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ZkChunksTest {
+
+    private static byte[] random(int size, long seed) {
+        final byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void put(StreamPreferences prefs, String key, byte[] value) throws IOException {
+        try (OutputStream out = prefs.putStream(key)) {
+            // in uneven writes, so that they straddle the chunks
+            for (int offset = 0; offset < value.length; offset += 100_000) {
+                out.write(value, offset, Math.min(100_000, value.length - offset));
+            }
+        }
+    }
+
+    private static byte[] get(StreamPreferences prefs, String key) throws IOException {
+        try (InputStream in = prefs.getStream(key)) {
+            if (in == null) {
+                return null;
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[10_000];
+            for (int length = in.read(buffer); length >= 0; length = in.read(buffer)) {
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static long chunks(CuratorFramework curator, String path) throws Exception {
+        final List<String> children = curator.getChildren().forPath(path);
+        return children.stream().filter(ZkChunks::isChunk).count();
+    }
+
+    @Test
+    public void shouldStoreLargeValuesInChunks() throws Exception {
+        final String namespace = "/chunks-" + UUID.randomUUID();
+        final CuratorFramework curator = ZkManager.curatorFacade(namespace);
+        final ZkPreferences root = new ZkPreferences(curator, true, false, false);
+        try {
+            final ZkPreferences prefs = (ZkPreferences) root.node("node");
+            prefs.put("small", "v");
+            // larger than a znode can hold
+            final byte[] large = random(3 * ZkChunks.CHUNK_BYTES + ZkChunks.CHUNK_BYTES / 2, 1);
+            put(prefs, "large", large);
+
+            assertEquals(get(prefs, "large"), large);
+            assertEquals(chunks(curator, "/node"), 4);
+            assertEquals(new TreeSet<>(Arrays.asList(prefs.keys())), new TreeSet<>(Arrays.asList("large", "small")));
+            assertEquals(prefs.childrenNames(), new String[0]);
+            assertEquals(prefs.keysAsync().get().length, 2);
+            assertEquals(prefs.get("large", "def"), "def");
+
+            // replaced along with its chunks
+            final byte[] larger = random(5 * ZkChunks.CHUNK_BYTES, 2);
+            put(prefs, "large", larger);
+            assertEquals(get(prefs, "large"), larger);
+            assertEquals(chunks(curator, "/node"), 5);
+
+            // also from another client, which didn't cache it
+            final ZkPreferences other = new ZkPreferences(ZkManager.curatorFacade(namespace), true, false, true);
+            try {
+                assertEquals(get((StreamPreferences) other.node("node"), "large"), larger);
+            } finally {
+                other.close();
+            }
+
+            // the small values are stored as they are
+            put(prefs, "small", bytes("streamed"));
+            assertEquals(prefs.get("small", null), "streamed");
+            assertEquals(get(prefs, "small"), bytes("streamed"));
+            assertNull(prefs.getStream("missing"));
+
+            prefs.put("large", "small again");
+            assertEquals(chunks(curator, "/node"), 0);
+            assertEquals(prefs.get("large", null), "small again");
+
+            put(prefs, "large", large);
+            prefs.remove("large");
+            assertEquals(chunks(curator, "/node"), 0);
+            assertEquals(prefs.keys(), new String[]{"small"});
+        } finally {
+            root.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
+    @Test
+    public void shouldReplaceTheChunksAsynchronously() throws Exception {
+        final String namespace = "/chunks-" + UUID.randomUUID();
+        final CuratorFramework curator = ZkManager.curatorFacade(namespace);
+        // not caching the values, so the chunks are only known from the node
+        final ZkPreferences root = new ZkPreferences(curator, true, false, false);
+        try {
+            final ZkPreferences prefs = (ZkPreferences) root.node("node");
+            put(prefs, "large", random(2 * ZkChunks.CHUNK_BYTES + 1, 1));
+            assertEquals(chunks(curator, "/node"), 3);
+
+            prefs.putAsync("large", "small").get(5, TimeUnit.SECONDS);
+            assertEquals(chunks(curator, "/node"), 0);
+            assertEquals(prefs.get("large", null), "small");
+
+            // and again for an unchanged value
+            prefs.putAsync("large", "small").get(5, TimeUnit.SECONDS);
+            assertEquals(prefs.get("large", null), "small");
+        } finally {
+            root.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
+    @Test
+    public void shouldNotCacheTheChunks() throws Exception {
+        final String namespace = "/chunks-" + UUID.randomUUID();
+        final CuratorFramework curator = ZkManager.curatorFacade(namespace);
+        final ZkPreferences root = new ZkPreferences(curator, true, false, true);
+        final ZkTreeCache tree = new ZkTreeCache(curator);
+        final ZkWatch children = ZkWatch.pathChildrenCache(curator, "/node");
+        final ZkWatch treeChildren = tree.watch("/node");
+        try {
+            final ZkPreferences prefs = (ZkPreferences) root.node("node");
+            final Set<String> events = ConcurrentHashMap.newKeySet();
+            final CountDownLatch added = new CountDownLatch(2);
+            children.start((client, event) -> {
+                events.add("children " + basename(event.getData().getPath()));
+                added.countDown();
+            });
+            tree.start();
+            treeChildren.start((client, event) -> {
+                events.add("tree " + basename(event.getData().getPath()));
+                added.countDown();
+            });
+            put(prefs, "large", random(2 * ZkChunks.CHUNK_BYTES + 1, 1));
+
+            assertTrue(added.await(5, TimeUnit.SECONDS));
+            final List<String> chunks = curator.getChildren().forPath("/node");
+            chunks.removeIf(name -> !ZkChunks.isChunk(name));
+            assertEquals(chunks.size(), 3);
+            for (String chunk : chunks) {
+                final ChildData data = children.getCurrentData("/node/" + chunk);
+                assertTrue(data == null || data.getData() == null, chunk);
+                assertNull(treeChildren.getCurrentData("/node/" + chunk), chunk);
+            }
+            assertEquals(new TreeSet<>(events), new TreeSet<>(Arrays.asList("children large", "tree large")));
+        } finally {
+            children.close();
+            tree.close();
+            root.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
+    @Test
+    public void shouldOnlyReadTheValuesToRemoveWhenStoringChunks() throws Exception {
+        final String namespace = "/chunks-" + UUID.randomUUID();
+        final CuratorFramework facade = ZkManager.curatorFacade(namespace);
+        final CuratorFramework curator = mock(CuratorFramework.class, delegatesTo(facade));
+        final ZkPreferences root = new ZkPreferences(curator, true, false, false);
+        final ZkPreferences other = new ZkPreferences(facade, true, false, false);
+        final ZkPreferences cached = new ZkPreferences(facade, true, false, true);
+        try {
+            final ZkPreferences prefs = (ZkPreferences) root.node("node");
+            prefs.put("small", "v");
+            clearInvocations(curator);
+            prefs.remove("small");
+            verify(curator, never()).getData();
+            verify(curator, times(1)).delete();
+
+            // stored in chunks by another client, which the listing of the keys reveals
+            put((StreamPreferences) other.node("node"), "large", random(2 * ZkChunks.CHUNK_BYTES + 1, 1));
+            assertEquals(prefs.keys(), new String[]{"large"});
+            prefs.remove("large");
+            assertEquals(chunks(facade, "/node"), 0);
+            assertEquals(prefs.keys(), new String[0]);
+
+            // and by another client since the value was cached
+            final Preferences watched = cached.node("node");
+            watched.put("k", "v");
+            assertEquals(watched.get("k", null), "v");
+            put((StreamPreferences) other.node("node"), "k", random(2 * ZkChunks.CHUNK_BYTES + 1, 2));
+            watched.remove("k");
+            assertEquals(chunks(facade, "/node"), 0);
+            assertEquals(watched.keys(), new String[0]);
+        } finally {
+            root.close();
+            other.close();
+            cached.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
+    @Test
+    public void shouldFailReadingAReplacedValue() throws Exception {
+        final String namespace = "/chunks-" + UUID.randomUUID();
+        final CuratorFramework curator = ZkManager.curatorFacade(namespace);
+        final ZkPreferences root = new ZkPreferences(curator, true, false, true);
+        try {
+            final ZkPreferences prefs = (ZkPreferences) root.node("node");
+            put(prefs, "large", random(2 * ZkChunks.CHUNK_BYTES + 1, 1));
+            try (InputStream in = prefs.getStream("large")) {
+                assertEquals(in.read(), random(1, 1)[0] & 0xFF);
+                put(prefs, "large", random(2 * ZkChunks.CHUNK_BYTES + 1, 2));
+                in.skip(2 * ZkChunks.CHUNK_BYTES);
+                fail("Read a replaced value");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("modified or removed"), e.getMessage());
+            }
+
+        } finally {
+            root.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
+    @Test
+    public void shouldExportWithoutTheChunkedValues() throws Exception {
+        final String namespace = "/chunks-" + UUID.randomUUID();
+        final String copy = "/chunks-" + UUID.randomUUID();
+        final ZkPreferences root = new ZkPreferences(ZkManager.curatorFacade(namespace), true, false, true);
+        final ZkPreferences other = new ZkPreferences(ZkManager.curatorFacade(copy), true, false, true);
+        try {
+            final ZkPreferences prefs = (ZkPreferences) root.node("node");
+            prefs.put("small", "value");
+            final byte[] text = new byte[2 * ZkChunks.CHUNK_BYTES];
+            Arrays.fill(text, (byte) 'a');
+            put(prefs, "large", text);
+            final ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            ZkManager.exportNode(prefs, xml);
+            assertFalse(xml.toString("UTF-8").contains("\"large\""));
+
+            // and can be imported back
+            ZkImport.importPreferences(new ByteArrayInputStream(xml.toByteArray()), other, other);
+            assertEquals(other.node("node").keys(), new String[]{"small"});
+            assertEquals(other.node("node").get("small", null), "value");
+        } finally {
+            root.close();
+            other.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(copy);
+        }
+    }
+}
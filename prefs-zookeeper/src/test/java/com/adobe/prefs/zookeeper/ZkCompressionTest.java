@@ -0,0 +1,139 @@
+package com.adobe.prefs.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.prefs.Preferences;
+import java.util.zip.Deflater;
+
+import static com.adobe.prefs.zookeeper.ZkUtils.bytes;
+import static com.adobe.prefs.zookeeper.ZkUtils.string;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+public class ZkCompressionTest {
+
+    private static String json(int entries) {
+        final StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < entries; i++) {
+            json.append(i > 0 ? "," : "").append("\"key").append(i).append("\":\"value\"");
+        }
+        return json.append('}').toString();
+    }
+
+    @Test
+    public void shouldCompressLargeValues() {
+        final ZkCompression compression = new ZkCompression(100);
+        final byte[] large = bytes(json(100));
+        final byte[] stored = compression.encode(large);
+        assertTrue(stored.length < large.length / 2, "Compressed to " + stored.length);
+        assertEquals(stored[0], (byte) 0xFF);
+        assertEquals(ZkCompression.decode(stored), large);
+
+        final byte[] small = bytes(json(2));
+        assertSame(compression.encode(small), small);
+        assertSame(ZkCompression.decode(small), small);
+        assertSame(ZkCompression.NONE.encode(large), large);
+    }
+
+    @Test
+    public void shouldStoreWhatDoesNotShrink() {
+        final ZkCompression compression = new ZkCompression(0);
+        final byte[] random = new byte[1000];
+        new Random(42).nextBytes(random);
+        random[0] = 0;
+        assertSame(compression.encode(random), random);
+
+        // raw data looking like a compressed value is framed, so that it's read back as it was written
+        final byte[] lookalike = {(byte) 0xFF, 'z', 'c', 1, 2, 3};
+        final byte[] stored = compression.encode(lookalike);
+        assertEquals(stored.length, lookalike.length + 4);
+        assertEquals(ZkCompression.decode(stored), lookalike);
+    }
+
+    private static byte[] deflated(int declaredLength, byte[] value) {
+        final Deflater deflater = new Deflater();
+        deflater.setInput(value);
+        deflater.finish();
+        final byte[] buffer = new byte[value.length + 64];
+        final int length = deflater.deflate(buffer);
+        deflater.end();
+        return ByteBuffer.allocate(8 + length).put(new byte[]{(byte) 0xFF, 'z', 'c', 1}).putInt(declaredLength)
+                .put(buffer, 0, length).array();
+    }
+
+    @Test
+    public void shouldBoundDecompression() {
+        final byte[] value = bytes(json(100));
+        assertEquals(ZkCompression.decode(deflated(value.length, value)), value);
+
+        // a value inflating beyond its declared length (a zip bomb) is rejected once it reaches that length
+        final byte[] bomb = deflated(100, new byte[10 * 1024 * 1024]);
+        assertTrue(bomb.length < 32 * 1024, "Deflated to " + bomb.length);
+        assertThrows(IllegalStateException.class, () -> ZkCompression.decode(bomb));
+        // and so is a declared length beyond the limit, before allocating anything
+        assertThrows(IllegalStateException.class,
+                () -> ZkCompression.decode(deflated(ZkCompression.MAX_BYTES + 1, value)));
+        assertThrows(IllegalStateException.class, () -> ZkCompression.decode(deflated(-1, value)));
+        assertThrows(IllegalStateException.class, () -> ZkCompression.decode(deflated(value.length + 1, value)));
+        assertThrows(IllegalStateException.class,
+                () -> ZkCompression.decode(Arrays.copyOf(deflated(value.length, value), 20)));
+        assertThrows(IllegalStateException.class, () -> ZkCompression.decode(new byte[]{(byte) 0xFF, 'z', 'c', 1, 0}));
+    }
+
+    @Test
+    public void shouldReadCompressedAndUncompressedValues() throws Exception {
+        final String namespace = "/compression-" + UUID.randomUUID();
+        final CuratorFramework curator = ZkManager.curatorFacade(namespace);
+        final ZkPreferences root;
+        System.setProperty("prefs.zk.compression.threshold", "1024");
+        try {
+            root = new ZkPreferences(curator, true, false, true);
+        } finally {
+            System.clearProperty("prefs.zk.compression.threshold");
+        }
+        final ZkPreferences plain = new ZkPreferences(curator, true, false, false);
+        try {
+            final ZkMetrics metrics = ZkManager.metrics();
+            final long compressed = metrics.operation("compression.compress").getCount();
+            final long uncompressedBytes = metrics.getUncompressedBytes();
+
+            final Preferences prefs = root.node("node");
+            final String large = json(200);
+            prefs.put("large", large);
+            prefs.put("small", "v");
+            ((ZkPreferences) prefs).putAsync("async", large).get();
+            assertEquals(prefs.get("large", null), large);
+
+            final byte[] stored = curator.getData().forPath("/node/large");
+            assertTrue(stored.length < large.length() / 2, "Stored " + stored.length + " bytes");
+            assertEquals(curator.getData().forPath("/node/async"), stored);
+            assertEquals(string(curator.getData().forPath("/node/small")), "v");
+            assertEquals(metrics.operation("compression.compress").getCount(), compressed + 2);
+            assertEquals(metrics.getUncompressedBytes(), uncompressedBytes + 2 * large.length());
+            assertTrue(metrics.getCompressionRatio() > 1);
+
+            // read without compression enabled, from zookeeper
+            assertEquals(plain.node("node").get("large", null), large);
+            // written without compression, read by a node with compression enabled
+            plain.node("node").put("old", large);
+            assertEquals(string(curator.getData().forPath("/node/old")), large);
+            assertEquals(prefs.get("old", null), large);
+
+            // unchanged values are not written again
+            final int version = curator.checkExists().forPath("/node/large").getVersion();
+            prefs.put("large", large);
+            assertEquals(curator.checkExists().forPath("/node/large").getVersion(), version);
+        } finally {
+            root.close();
+            plain.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.adobe.prefs.zookeeper;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ZkEventDispatcherTest {
+
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldDeliverTheEventsOfALaneInOrder() throws Exception {
+        final ZkEventDispatcher dispatcher = new ZkEventDispatcher(executor, 1000);
+        final ZkEventDispatcher.Lane lane = dispatcher.lane();
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 500; i++) {
+            final int event = i;
+            lane.submit("listener", event, () -> received.add(event));
+        }
+        assertEquals(drain(dispatcher, lane), 500);
+        assertEquals(received, IntStream.range(0, 500).boxed().collect(Collectors.toList()));
+        assertEquals(dispatcher.getQueueDepth(), 0);
+    }
+
+    @Test
+    public void shouldNotLetASlowListenerDelayOtherLanes() throws Exception {
+        final ZkEventDispatcher dispatcher = new ZkEventDispatcher(executor, 1000);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(1);
+        dispatcher.lane().submit("slow", "event", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        dispatcher.lane().submit("fast", "event", delivered::countDown);
+        try {
+            assertTrue(delivered.await(5, TimeUnit.SECONDS), "fast listener not notified");
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void shouldDropEventsBeyondTheCapacity() throws Exception {
+        final ZkEventDispatcher dispatcher = new ZkEventDispatcher(executor, 10);
+        final ZkEventDispatcher.Lane lane = dispatcher.lane();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        lane.submit("slow", "first", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        final CountDownLatch delivered = new CountDownLatch(10);
+        for (int i = 0; i < 15; i++) {
+            lane.submit("listener", i, delivered::countDown);
+        }
+        assertEquals(dispatcher.getQueueDepth(), 10);
+        assertEquals(dispatcher.getDroppedCount(), 5);
+        release.countDown();
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(drain(dispatcher, lane), 11);
+    }
+
+    @Test
+    public void shouldOnlyDropTheEventsOfTheFullLane() throws Exception {
+        final ZkEventDispatcher dispatcher = new ZkEventDispatcher(executor, 10);
+        final ZkEventDispatcher.Lane slow = dispatcher.lane();
+        final ZkEventDispatcher.Lane fast = dispatcher.lane();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        slow.submit("slow", "first", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 15; i++) {
+            slow.submit("slow", i, () -> { });
+        }
+        final CountDownLatch delivered = new CountDownLatch(10);
+        try {
+            for (int i = 0; i < 10; i++) {
+                fast.submit("fast", i, delivered::countDown);
+            }
+            assertTrue(delivered.await(5, TimeUnit.SECONDS), "fast listener not notified");
+            assertEquals(slow.getDroppedCount(), 5);
+            assertEquals(fast.getDroppedCount(), 0);
+            assertEquals(dispatcher.getDroppedCount(), 5);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldNotReplaceTheDispatcherInUse() {
+        ZkManager.eventDispatcher();
+        ZkManager.eventDispatcher(new ZkEventDispatcher(executor, 10, 0));
+    }
+
+    @Test
+    public void shouldDeliverInTheCallingThreadWithoutAnExecutor() {
+        final ZkEventDispatcher dispatcher = new ZkEventDispatcher(null, 0);
+        final Thread caller = Thread.currentThread();
+        final List<Thread> threads = new ArrayList<>();
+        dispatcher.lane().submit("listener", "event", () -> threads.add(Thread.currentThread()));
+        assertEquals(threads, Collections.singletonList(caller));
+        assertEquals(dispatcher.getDeliveredCount(), 1);
+    }
+
+    /**
+     * @return the number of events delivered before a last event of the lane
+     */
+    private static long drain(ZkEventDispatcher dispatcher, ZkEventDispatcher.Lane lane) throws Exception {
+        final CompletableFuture<Long> delivered = new CompletableFuture<>();
+        lane.submit("drain", "last", () -> delivered.complete(dispatcher.getDeliveredCount()));
+        return delivered.get(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,68 @@
+package com.adobe.prefs.zookeeper;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.prefs.Preferences;
+
+import static org.testng.Assert.assertEquals;
+
+public class ZkExportTest {
+
+    @Test
+    public void shouldExportTheSameDocumentAsTheDefaultExport() throws Exception {
+        final String namespace = "/export-" + UUID.randomUUID();
+        final ZkPreferences root = new ZkPreferences(ZkManager.curatorFacade(namespace), true, true, false);
+        try {
+            final Preferences node = root.node("a/b");
+            for (int i = 0; i < 20; i++) {
+                node.put("key" + i, "value <" + i + "> & \"quoted\"");
+                node.node("child" + i).put("k", "v" + i);
+            }
+            node.node("child0/grandchild").putInt("int", 42);
+            node.node("both").put("k", "v");
+            node.put("both", "b");
+            node.node("empty");
+
+            for (boolean deep : new boolean[] {true, false}) {
+                final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                if (deep) {
+                    node.exportSubtree(expected);
+                    ZkManager.exportSubtree(node, actual);
+                } else {
+                    node.exportNode(expected);
+                    ZkManager.exportNode(node, actual);
+                }
+                assertEquals(nodes(actual), nodes(expected), "deep: " + deep);
+            }
+        } finally {
+            root.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldNotExportRemovedNodes() throws Exception {
+        final String namespace = "/export-" + UUID.randomUUID();
+        final ZkPreferences root = new ZkPreferences(ZkManager.curatorFacade(namespace), true, true, false);
+        try {
+            final Preferences node = root.node("removed");
+            node.removeNode();
+            ZkManager.exportSubtree(node, new ByteArrayOutputStream());
+        } finally {
+            root.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
+    private Map<String, Map<String, String>> nodes(ByteArrayOutputStream document) throws Exception {
+        final Map<String, Map<String, String>> nodes = new LinkedHashMap<>();
+        ZkImport.collect(ZkImport.parse(new ByteArrayInputStream(document.toByteArray())), "/", nodes);
+        return nodes;
+    }
+}
@@ -0,0 +1,133 @@
+package com.adobe.prefs.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.prefs.InvalidPreferencesFormatException;
+
+import static com.adobe.prefs.zookeeper.ZkUtils.bytes;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+public class ZkImportTest {
+
+    private String namespace;
+    private CuratorFramework facade;
+    private CuratorFramework curator;
+
+    @BeforeMethod
+    public void setUp() {
+        namespace = "/import-" + UUID.randomUUID();
+        facade = ZkManager.curatorFacade(namespace);
+        curator = mock(CuratorFramework.class, delegatesTo(facade));
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        if (ZkManager.curatorFramework().checkExists().forPath(namespace) != null) {
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
+    @Test
+    public void shouldImportInBatchesAndSkipUnchangedValues() throws Exception {
+        final ZkPreferences root = new ZkPreferences(facade, true, true, false);
+        try {
+            root.node("existing").put("k", "old");
+            root.node("existing").put("same", "v");
+
+            final Map<String, Map<String, String>> nodes = nodes(document());
+            new ZkImport(curator, 1000).apply(nodes);
+
+            assertEquals(root.get("k", null), "v");
+            assertEquals(new TreeSet<>(Arrays.asList(root.childrenNames())),
+                    new TreeSet<>(Arrays.asList("a", "both", "existing")));
+            assertEquals(root.node("existing").get("k", null), "new");
+            assertEquals(root.node("existing").get("same", null), "v");
+            assertEquals(root.get("both", null), "b");
+            assertEquals(root.node("both").get("k", null), "v");
+            for (int i = 0; i < 50; i++) {
+                assertEquals(root.node("a/b").get("key" + i, null), "value" + i);
+            }
+
+            // nothing left to write
+            clearInvocations(curator);
+            new ZkImport(curator, 1000).apply(nodes);
+            verify(curator, never()).transaction();
+        } finally {
+            root.close();
+        }
+    }
+
+    @Test
+    public void shouldRollBackAFailedImport() throws Exception {
+        final ZkPreferences root = new ZkPreferences(facade, true, true, false);
+        try {
+            root.node("existing").put("k", "old");
+            final AtomicBoolean modified = new AtomicBoolean();
+            doAnswer(invocation -> {
+                // once the import created its nodes, concurrently create a key it's about to write
+                if (facade.checkExists().forPath("/a/b") != null && modified.compareAndSet(false, true)) {
+                    facade.create().forPath("/a/b/key49", bytes("concurrent"));
+                }
+                return facade.transaction();
+            }).when(curator).transaction();
+
+            try {
+                new ZkImport(curator, 1000).apply(nodes(document()));
+                fail("Import should fail");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            assertEquals(root.node("existing").get("k", null), "old");
+            assertNull(root.get("k", null));
+            assertEquals(new TreeSet<>(Arrays.asList(root.childrenNames())),
+                    new TreeSet<>(Arrays.asList("a", "existing")));
+            assertEquals(facade.getChildren().forPath("/a/b"), Arrays.asList("key49"));
+        } finally {
+            root.close();
+        }
+    }
+
+    @Test(expectedExceptions = InvalidPreferencesFormatException.class)
+    public void shouldRejectInvalidDocuments() throws Exception {
+        nodes("<preferences><root type='user'><node name='a/b'><map/></node></root></preferences>");
+    }
+
+    private Map<String, Map<String, String>> nodes(String document) throws Exception {
+        final Map<String, Map<String, String>> nodes = new LinkedHashMap<>();
+        ZkImport.collect(ZkImport.parse(new ByteArrayInputStream(document.getBytes("UTF-8"))), "/", nodes);
+        return nodes;
+    }
+
+    private String document() {
+        final StringBuilder doc = new StringBuilder()
+                .append("<?xml version='1.0' encoding='UTF-8' standalone='no'?>")
+                .append("<!DOCTYPE preferences SYSTEM 'http://java.sun.com/dtd/preferences.dtd'>")
+                .append("<preferences EXTERNAL_XML_VERSION='1.0'><root type='user'>")
+                .append("<map><entry key='k' value='v'/><entry key='both' value='b'/></map>")
+                .append("<node name='existing'><map><entry key='k' value='new'/><entry key='same' value='v'/></map></node>")
+                .append("<node name='both'><map><entry key='k' value='v'/></map></node>")
+                .append("<node name='a'><map/><node name='b'><map>");
+        for (int i = 0; i < 50; i++) {
+            doc.append("<entry key='key").append(i).append("' value='value").append(i).append("'/>");
+        }
+        return doc.append("</map></node></node></root></preferences>").toString();
+    }
+}
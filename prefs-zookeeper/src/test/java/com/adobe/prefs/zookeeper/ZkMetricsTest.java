@@ -0,0 +1,100 @@
+package com.adobe.prefs.zookeeper;
+
+import org.testng.annotations.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.PreferenceChangeListener;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ZkMetricsTest {
+
+    @Test
+    public void shouldRecordLatencies() {
+        final ZkMetrics metrics = new ZkMetrics(null);
+        final ZkMetrics.Operation operation = metrics.operation("test");
+        for (int i = 0; i < 99; i++) {
+            operation.recordNanos(TimeUnit.MICROSECONDS.toNanos(3000), false);
+        }
+        operation.recordNanos(TimeUnit.MILLISECONDS.toNanos(100), true);
+
+        assertEquals(operation.getCount(), 100);
+        assertEquals(operation.getErrorCount(), 1);
+        assertEquals(operation.getMeanMillis(), 3.97, 1e-9);
+        assertEquals(operation.getMaxMillis(), 100.0);
+        // 3 ms fall in the bucket up to 4.096 ms, 100 ms in the one up to 131.072 ms
+        assertEquals(operation.get50thPercentileMillis(), 4.096);
+        assertEquals(operation.get99thPercentileMillis(), 4.096);
+        assertEquals(operation.getPercentileMillis(1), 100.0);
+
+        final NavigableMap<Double, Long> histogram = operation.histogram();
+        assertEquals(histogram.get(2.048), Long.valueOf(0));
+        assertEquals(histogram.get(4.096), Long.valueOf(99));
+        assertEquals(histogram.get(131.072), Long.valueOf(100));
+        assertEquals(histogram.lastEntry().getKey(), Double.POSITIVE_INFINITY);
+        assertEquals(histogram.lastEntry().getValue(), Long.valueOf(100));
+
+        assertEquals(metrics.getOperations().keySet().toString(), "[test]");
+    }
+
+    @Test
+    public void shouldNameTheCuratorOperations() {
+        assertEquals(ZkMetrics.curatorOperation("GetDataBuilderImpl-Foreground"), "curator.getData");
+        assertEquals(ZkMetrics.curatorOperation("GetChildrenBuilderImpl-Background"), "curator.getChildren.async");
+        assertEquals(ZkMetrics.curatorOperation("ExistsBuilderImpl-Foreground-CreateParents"), "curator.checkExists");
+        assertEquals(ZkMetrics.curatorOperation("CuratorMultiTransactionImpl-Foreground"), "curator.transaction");
+        assertEquals(ZkMetrics.curatorOperation("something-else"), "curator.something-else");
+    }
+
+    @Test
+    public void shouldMeasureThePreferences() throws Exception {
+        final String namespace = "/metrics-" + UUID.randomUUID();
+        final ZkPreferences root = new ZkPreferences(ZkManager.curatorFacade(namespace), true, true, false);
+        final ZkMetrics metrics = ZkManager.metrics();
+        try {
+            final long gets = metrics.operation("spi.get").getCount();
+            final long getData = metrics.operation("curator.getData").getCount();
+            final int listeners = metrics.getListenerCount();
+
+            final ZkPreferences node = (ZkPreferences) root.node("node");
+            node.put("k", "v");
+            assertEquals(node.get("k", null), "v");
+            assertEquals(metrics.operation("spi.get").getCount(), gets + 1);
+            assertTrue(metrics.operation("curator.getData").getCount() > getData);
+
+            // the shared gauges also count the nodes of the other tests, which may be garbage collected at any time
+            final ZkMetrics gauges = new ZkMetrics(null);
+            gauges.nodeCreated(root);
+            gauges.nodeCreated(node);
+            assertEquals(gauges.getNodeCount(), 2);
+            assertEquals(gauges.getWatchCount(), 0);
+
+            final PreferenceChangeListener listener = evt -> { };
+            node.addPreferenceChangeListener(listener);
+            assertEquals(gauges.getListenerCount(), 1);
+            assertEquals(gauges.getWatchCount(), 1);
+            assertEquals(metrics.getListenerCount(), listeners + 1);
+
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(server.getAttribute(new ObjectName(ZkMetrics.DOMAIN + ":type=ZkMetrics"), "ListenerCount"),
+                    metrics.getListenerCount());
+            assertEquals(server.getAttribute(new ObjectName(ZkMetrics.DOMAIN + ":type=Operation,name=\"spi.get\""),
+                    "Count"), metrics.operation("spi.get").getCount());
+
+            node.removeNode();
+            assertEquals(gauges.getNodeCount(), 1);
+            assertEquals(gauges.getListenerCount(), 0);
+            assertEquals(gauges.getWatchCount(), 0);
+            assertEquals(metrics.getListenerCount(), listeners);
+        } finally {
+            root.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+}
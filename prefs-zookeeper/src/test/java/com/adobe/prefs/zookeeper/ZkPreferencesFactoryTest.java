@@ -2,7 +2,15 @@ package com.adobe.prefs.zookeeper;
 
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.prefs.Preferences;
+
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
 public class ZkPreferencesFactoryTest {
 
@@ -22,4 +30,46 @@ public class ZkPreferencesFactoryTest {
         assertEquals(factory.userRoot().curator.getNamespace(), "usr/root");
     }
 
+    @Test(dependsOnMethods = "testCustomSettings")
+    public void testWarmUp() throws Exception {
+        final String namespace = "/warmup-" + UUID.randomUUID();
+        final ZkPreferences root = new ZkPreferences(ZkManager.curatorFacade(namespace + "/usr"), true, true, false);
+        final Properties properties = (Properties) System.getProperties().clone();
+        try {
+            final Preferences app = root.node("app");
+            app.put("k", "v");
+            for (int i = 0; i < 10; i++) {
+                app.node("child" + i).putInt("i", i);
+            }
+            System.setProperty("java.util.prefs.systemRoot", namespace + "/sys");
+            System.setProperty("java.util.prefs.userRoot", namespace + "/usr");
+            System.setProperty("prefs.zk.cache.values", "true");
+            System.setProperty("prefs.zk.warmup.user", "/app, /missing");
+            System.setProperty("prefs.zk.warmup.wait_ms", "10000");
+
+            final ZkPreferencesFactory factory = new ZkPreferencesFactory();
+            try {
+                final ZkWarmUp warmUp = factory.warmUp();
+                assertSame(ZkManager.warmUp(), warmUp);
+                assertTrue(warmUp.isReady());
+                assertFalse(warmUp.isFailed());
+                assertEquals(warmUp.getPaths(), Arrays.asList("user:/app", "user:/missing"));
+                assertEquals(warmUp.getNodeCount(), 11);
+                assertEquals(warmUp.getEntryCount(), 11);
+                assertTrue(warmUp.getElapsedMillis() >= 0);
+                assertEquals(factory.userRoot().node("app").get("k", null), "v");
+                assertEquals(factory.userRoot().node("app/child7").getInt("i", -1), 7);
+                assertFalse(factory.userRoot().nodeExists("missing"));
+            } finally {
+                factory.userRoot().close();
+                factory.systemRoot().close();
+            }
+        } finally {
+            System.setProperties(properties);
+            ZkManager.warmUp(ZkWarmUp.none());
+            root.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
 }
\ No newline at end of file
@@ -1,15 +1,89 @@
 package com.adobe.prefs.zookeeper;
 
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
 import org.apache.zookeeper.data.Stat;
 import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+import static com.adobe.prefs.zookeeper.ZkUtils.bytes;
+import static org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent.Type.CHILD_UPDATED;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class ZkPreferencesTest {
 
+    private final Deque<Closeable> closeables = new ArrayDeque<>();
+    private String namespace;
+    private CuratorFramework facade;
+    private CuratorFramework curator;
+
+    @BeforeMethod
+    public void setUp() {
+        namespace = "/prefs-" + UUID.randomUUID();
+        facade = ZkManager.curatorFacade(namespace);
+        curator = mock(CuratorFramework.class, delegatesTo(facade));
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        while (!closeables.isEmpty()) {
+            closeables.pop().close();
+        }
+        if (ZkManager.curatorFramework().checkExists().forPath(namespace) != null) {
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
     @Test
     public void shouldMapNullStatsToNeitherContainerNorValue() {
         assertEquals(ZkPreferences.isContainerNode(null), false, "containerNode");
@@ -38,6 +112,664 @@ public class ZkPreferencesTest {
         };
     }
 
+    @Test
+    public void shouldServeRepeatedReadsFromTheCache() throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(curator, true, false, true));
+        final Preferences prefs = root.node("node");
+        prefs.put("k", "v1");
+        assertEquals(prefs.get("k", null), "v1");
+
+        clearInvocations(curator);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(prefs.get("k", null), "v1");
+        }
+        verify(curator, never()).getData();
+
+        final CountDownLatch updated = changed(prefs, "k", "v2");
+        facade.setData().forPath("/node/k", bytes("v2"));
+        assertTrue(updated.await(5, TimeUnit.SECONDS));
+        assertEquals(prefs.get("k", null), "v2");
+
+        final CountDownLatch removed = changed(prefs, "k", null);
+        facade.delete().forPath("/node/k");
+        assertTrue(removed.await(5, TimeUnit.SECONDS));
+        assertNull(prefs.get("k", null));
+    }
+
+    @DataProvider
+    public Object[][] encodings() {
+        return new Object[][] {{true}, {false}};
+    }
+
+    @Test(dataProvider = "encodings")
+    public void shouldShareCachedValuesWithoutCopying(boolean encodedBinary) throws Exception {
+        final byte[] payload = new byte[6_000];
+        new Random(42).nextBytes(payload);
+        final ZkPreferences root = closing(new ZkPreferences(curator, encodedBinary, false, true));
+        final Preferences prefs = root.node("node");
+        prefs.putByteArray("payload", payload);
+        prefs.put("k", "v");
+        assertEquals(ZkManager.getByteBuffer(prefs, "payload"), ByteBuffer.wrap(payload));
+        assertEquals(prefs.get("k", null), "v");
+
+        clearInvocations(curator);
+        final ByteBuffer buffer = ZkManager.getByteBuffer(prefs, "payload");
+        assertTrue(buffer.isReadOnly());
+        assertEquals(buffer, ByteBuffer.wrap(payload));
+        try {
+            buffer.put(0, (byte) 0);
+            fail("The buffer should be read-only");
+        } catch (ReadOnlyBufferException e) {
+            // expected
+        }
+        assertEquals(ZkManager.getByteBuffer(prefs, "payload"), ByteBuffer.wrap(payload));
+        assertSame(prefs.get("k", null), prefs.get("k", null), "the decoded value should be memoised");
+        verify(curator, never()).getData();
+        assertNull(ZkManager.getByteBuffer(prefs, "missing"));
+    }
+
+    @Test
+    public void shouldParseTypedValuesOncePerVersion() throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(curator, true, false, true));
+        final Preferences prefs = root.node("node");
+        prefs.putInt("i", 42);
+        prefs.putLong("l", Long.MAX_VALUE);
+        prefs.putBoolean("b", true);
+        prefs.putDouble("d", 0.5);
+        prefs.put("s", "not a number");
+        // values are cached from the first read on
+        for (String key : prefs.keys()) {
+            prefs.get(key, null);
+        }
+
+        clearInvocations(curator);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(prefs.getInt("i", -1), 42);
+            assertEquals(prefs.getLong("l", -1), Long.MAX_VALUE);
+            assertTrue(prefs.getBoolean("b", false));
+            assertEquals(prefs.getDouble("d", -1), 0.5);
+            assertEquals(prefs.getInt("s", -1), -1);
+            assertFalse(prefs.getBoolean("s", false));
+            // the same value parsed as another type
+            assertEquals(prefs.getLong("i", -1), 42L);
+        }
+        verify(curator, never()).getData();
+
+        // each type is only parsed once, even when the value is read alternately as several types
+        final AtomicInteger parses = new AtomicInteger();
+        final ZkValue value = ZkValue.written(bytes("42"), new Stat());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(value.parsed(Integer.class, s -> {
+                parses.incrementAndGet();
+                return Integer.valueOf(s);
+            }), Integer.valueOf(42));
+            assertEquals(value.parsed(Long.class, s -> {
+                parses.incrementAndGet();
+                return Long.valueOf(s);
+            }), Long.valueOf(42));
+            assertNull(value.parsed(Boolean.class, s -> {
+                parses.incrementAndGet();
+                return null;
+            }));
+        }
+        assertEquals(parses.get(), 3);
+
+        CountDownLatch changed = changed(prefs, "i", "43");
+        facade.setData().forPath("/node/i", bytes("43"));
+        assertTrue(changed.await(5, TimeUnit.SECONDS));
+        assertEquals(prefs.getInt("i", -1), 43);
+        changed = changed(prefs, "i", "forty-four");
+        facade.setData().forPath("/node/i", bytes("forty-four"));
+        assertTrue(changed.await(5, TimeUnit.SECONDS));
+        assertEquals(prefs.getInt("i", -1), -1);
+        assertEquals(prefs.get("i", null), "forty-four");
+        changed = changed(prefs, "b", "FALSE");
+        facade.setData().forPath("/node/b", bytes("FALSE"));
+        assertTrue(changed.await(5, TimeUnit.SECONDS));
+        assertFalse(prefs.getBoolean("b", true));
+        changed = changed(prefs, "d", null);
+        facade.delete().forPath("/node/d");
+        assertTrue(changed.await(5, TimeUnit.SECONDS));
+        assertEquals(prefs.getDouble("d", -1), -1.0);
+    }
+
+    @Test
+    public void shouldReadCachedValuesWithoutTheNodeLock() throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(curator, true, false, true));
+        final Preferences prefs = root.node("node");
+        prefs.put("k", "v");
+        prefs.putInt("i", 42);
+        assertEquals(prefs.get("k", null), "v");
+        assertEquals(prefs.getInt("i", -1), 42);
+
+        // a write holding the node lock while stuck in zookeeper
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            blocked.countDown();
+            release.await();
+            return facade.create();
+        }).when(curator).create();
+        final CompletableFuture<Void> write = CompletableFuture.runAsync(() -> prefs.put("other", "x"));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        try {
+            assertEquals(CompletableFuture.supplyAsync(() -> prefs.get("k", null)).get(5, TimeUnit.SECONDS), "v");
+            assertEquals(CompletableFuture.supplyAsync(() -> prefs.getInt("i", -1)).get(5, TimeUnit.SECONDS),
+                    Integer.valueOf(42));
+        } finally {
+            release.countDown();
+        }
+        write.get(5, TimeUnit.SECONDS);
+        assertEquals(prefs.get("other", null), "x");
+
+        prefs.removeNode();
+        try {
+            prefs.get("k", null);
+            fail("Removed nodes should not be readable");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldRememberMissingKeys() throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(curator, true, false, true));
+        final ZkCacheStats stats = ZkManager.cacheStats();
+        final Preferences prefs = root.node("node");
+        prefs.put("k", "v");
+        final long misses = stats.getMissingKeyMissCount();
+        assertEquals(prefs.get("missing", "def"), "def");
+        assertEquals(stats.getMissingKeyMissCount(), misses + 1);
+
+        clearInvocations(curator);
+        final long hits = stats.getMissingKeyHitCount();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(prefs.get("missing", "def"), "def");
+            assertEquals(prefs.getInt("missing", -1), -1);
+            assertNull(prefs.getByteArray("missing", null));
+            assertEquals(((ZkPreferences) prefs).getAsync("missing", "def").get(), "def");
+        }
+        verify(curator, never()).getData();
+        assertEquals(stats.getMissingKeyHitCount(), hits + 40);
+
+        // created by another client: the watch makes the key visible again
+        final CountDownLatch created = changed(prefs, "missing", "created");
+        facade.create().forPath("/node/missing", bytes("created"));
+        assertTrue(created.await(5, TimeUnit.SECONDS));
+        assertEquals(prefs.get("missing", null), "created");
+
+        // created and removed locally
+        prefs.put("local", "v");
+        prefs.remove("local");
+        clearInvocations(curator);
+        assertNull(prefs.get("local", null));
+        verify(curator, never()).getData();
+        prefs.put("local", "again");
+        assertEquals(prefs.get("local", null), "again");
+    }
+
+    @Test
+    public void shouldWriteDifferentKeysConcurrently() throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(curator, true, false, false));
+        final Preferences prefs = root.node("node");
+
+        // the first write gets stuck in zookeeper
+        final AtomicBoolean armed = new AtomicBoolean(true);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            if (armed.compareAndSet(true, false)) {
+                blocked.countDown();
+                release.await();
+            }
+            return facade.create();
+        }).when(curator).create();
+        final CompletableFuture<Void> stuck = CompletableFuture.runAsync(() -> prefs.put("a", "1"));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        final CompletableFuture<Void> removal;
+        try {
+            CompletableFuture.runAsync(() -> prefs.put("b", "2")).get(5, TimeUnit.SECONDS);
+            CompletableFuture.runAsync(() -> prefs.remove("b")).get(5, TimeUnit.SECONDS);
+            assertNull(facade.checkExists().forPath("/node/b"));
+
+            // the removal of the node waits for the writes in progress
+            removal = CompletableFuture.runAsync(() -> {
+                try {
+                    prefs.removeNode();
+                } catch (BackingStoreException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            try {
+                removal.get(200, TimeUnit.MILLISECONDS);
+                fail("The removal should wait for the writes in progress");
+            } catch (TimeoutException e) {
+                // expected
+            }
+        } finally {
+            release.countDown();
+        }
+        stuck.get(5, TimeUnit.SECONDS);
+        removal.get(5, TimeUnit.SECONDS);
+        assertNull(facade.checkExists().forPath("/node"));
+        try {
+            prefs.put("c", "3");
+            fail("Removed nodes should not be writable");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldWriteWithoutReadingFirst() throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(curator, true, false, true));
+        final Preferences prefs = root.node("node");
+        prefs.put("k", "v1");
+        assertEquals(prefs.get("k", null), "v1");
+        final int version = facade.checkExists().forPath("/node/k").getVersion();
+
+        clearInvocations(curator);
+        prefs.put("k", "v2");
+        verify(curator, never()).checkExists();
+        verify(curator, never()).getData();
+        assertEquals(facade.checkExists().forPath("/node/k").getVersion(), version + 1);
+
+        // unchanged values are not written again, nor read
+        clearInvocations(curator);
+        prefs.put("k", "v2");
+        verifyNoMoreInteractions(curator);
+        assertEquals(facade.checkExists().forPath("/node/k").getVersion(), version + 1);
+
+        // when not cached, existing keys are updated in a single round trip, and new keys created right after
+        final ZkPreferences uncached = closing(new ZkPreferences(curator, true, false, false));
+        clearInvocations(curator);
+        uncached.node("node").put("k", "v3");
+        verify(curator, times(1)).setData();
+        verify(curator, never()).create();
+        verify(curator, never()).getData();
+        assertEquals(uncached.node("node").get("k", null), "v3");
+        clearInvocations(curator);
+        uncached.node("node").put("new", "v");
+        verify(curator, times(1)).setData();
+        verify(curator, times(1)).create();
+        verify(curator, never()).getData();
+        assertEquals(uncached.node("node").get("new", null), "v");
+
+        // an outdated cached version is detected and retried
+        facade.setData().forPath("/node/k", bytes("remote"));
+        prefs.put("k", "v4");
+        assertEquals(new String(facade.getData().forPath("/node/k"), "UTF-8"), "v4");
+    }
+
+    @Test
+    public void shouldMaterialiseNodesInOneTransactionPerLevel() throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(curator, true, false, false));
+        root.put("value", "v");
+
+        clearInvocations(curator);
+        root.node("a/b/c/d");
+        root.node("value");
+        verify(curator, times(5)).checkExists();
+        verify(curator, times(5)).transaction();
+        verify(curator, never()).create();
+        verify(curator, never()).delete();
+
+        for (String path : Arrays.asList("/a", "/a/b", "/a/b/c", "/a/b/c/d", "/value")) {
+            assertTrue(ZkPreferences.isContainerNode(facade.checkExists().forPath(path)), path);
+        }
+        assertEquals(root.get("value", null), "v");
+
+        // existing containers only get checked
+        clearInvocations(curator);
+        closing(new ZkPreferences(curator, true, false, false)).node("a/b/c/d");
+        verify(curator, times(5)).checkExists();
+        verify(curator, never()).transaction();
+    }
+
+    @Test
+    public void shouldFanOutSharedTreeCacheEvents() throws Exception {
+        final ZkTreeCache tree = closing(new ZkTreeCache(facade));
+        final ZkPreferences root = closing(new ZkPreferences(facade, true, false, false, tree::watch));
+        tree.start();
+        final Preferences a = root.node("a");
+        final Preferences b = root.node("a/b");
+        final PreferenceChangeListener aListener = mock(PreferenceChangeListener.class);
+        final PreferenceChangeListener bListener = mock(PreferenceChangeListener.class);
+        final NodeChangeListener nodeListener = mock(NodeChangeListener.class);
+        a.addPreferenceChangeListener(aListener);
+        b.addPreferenceChangeListener(bListener);
+        root.addNodeChangeListener(nodeListener);
+        assertEquals(tree.watchedNodes(), 3);
+
+        facade.create().forPath("/a/k", bytes("v"));
+        facade.create().forPath("/a/b/k", bytes("v"));
+        facade.create().forPath("/c", new byte[0]);
+        verify(aListener, timeout(5000)).preferenceChange(argThat(event -> event.getKey().equals("k")));
+        verify(bListener, timeout(5000)).preferenceChange(argThat(event -> event.getKey().equals("k")));
+        verify(nodeListener, timeout(5000)).childAdded(argThat(event -> event.getChild().name().equals("c")));
+
+        a.removePreferenceChangeListener(aListener);
+        b.removeNode();
+        assertEquals(tree.watchedNodes(), 1);
+    }
+
+    @Test
+    public void shouldCoalesceBurstsOfUpdates() throws Exception {
+        // counts the updates delivered by the watch, so that none of them gets merged by the watch itself
+        final Semaphore updates = new Semaphore(0);
+        final ZkPreferences root = closing(new ZkPreferences(facade, true, false, false, path -> {
+            final ZkWatch watch = ZkWatch.pathChildrenCache(facade, path);
+            return new ZkWatch() {
+                @Override
+                public void start(PathChildrenCacheListener listener) throws Exception {
+                    watch.start((client, event) -> {
+                        listener.childEvent(client, event);
+                        if (event.getType() == CHILD_UPDATED) {
+                            updates.release();
+                        }
+                    });
+                }
+
+                @Override
+                public ChildData getCurrentData(String path) {
+                    return watch.getCurrentData(path);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    watch.close();
+                }
+            };
+        }));
+        final Preferences prefs = root.node("node");
+        prefs.put("k", "v");
+        final List<String> values = Collections.synchronizedList(new ArrayList<>());
+        final Map<String, CountDownLatch> delivered = new ConcurrentHashMap<>();
+        prefs.addPreferenceChangeListener(event -> {
+            values.add(event.getNewValue());
+            delivered.computeIfAbsent(String.valueOf(event.getNewValue()), v -> new CountDownLatch(1)).countDown();
+        });
+        ZkManager.coalesceUpdates(prefs, 1, TimeUnit.SECONDS);
+
+        // wait for the watch to settle, so that the burst is seen as updates
+        facade.setData().forPath("/node/k", bytes("settled"));
+        assertTrue(delivered.computeIfAbsent("settled", v -> new CountDownLatch(1)).await(5, TimeUnit.SECONDS));
+        values.clear();
+        updates.drainPermits();
+        final long coalesced = ZkManager.eventDispatcher().getCoalescedCount();
+        for (int i = 0; i < 20; i++) {
+            facade.setData().forPath("/node/k", bytes("v" + i));
+            assertTrue(updates.tryAcquire(5, TimeUnit.SECONDS));
+        }
+        assertTrue(delivered.computeIfAbsent("v19", v -> new CountDownLatch(1)).await(5, TimeUnit.SECONDS));
+        assertEquals(values, Collections.singletonList("v19"));
+        assertTrue(ZkManager.eventDispatcher().getCoalescedCount() >= coalesced + 19);
+
+        // a removal discards the pending update, which would otherwise be delivered before the next one
+        values.clear();
+        facade.setData().forPath("/node/k", bytes("stale"));
+        facade.delete().forPath("/node/k");
+        assertTrue(delivered.computeIfAbsent("null", v -> new CountDownLatch(1)).await(5, TimeUnit.SECONDS));
+        facade.create().forPath("/node/k", bytes("again"));
+        assertTrue(delivered.computeIfAbsent("again", v -> new CountDownLatch(1)).await(5, TimeUnit.SECONDS));
+        facade.setData().forPath("/node/k", bytes("fresh"));
+        assertTrue(delivered.computeIfAbsent("fresh", v -> new CountDownLatch(1)).await(5, TimeUnit.SECONDS));
+        assertEquals(values, Arrays.asList(null, "again", "fresh"));
+    }
+
+    @Test
+    public void shouldSplitManyChildrenIntoKeysAndNodes() throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(facade, true, false, false));
+        final Set<String> keys = new TreeSet<>();
+        final Set<String> nodes = new TreeSet<>();
+        for (int i = 0; i < 50; i++) {
+            keys.add("key" + i);
+            root.put("key" + i, "value" + i);
+            nodes.add("node" + i);
+            root.node("node" + i).flush();
+        }
+        root.node("both").put("k", "v");
+        root.put("both", "v");
+        root.flush();
+        keys.add("both");
+        nodes.add("both");
+
+        assertEquals(new TreeSet<>(Arrays.asList(root.keys())), keys);
+        assertEquals(new TreeSet<>(Arrays.asList(root.childrenNames())), nodes);
+    }
+
+    @Test(dataProvider = "watches")
+    public void shouldListAKeyTurnedIntoANode(boolean cachedValues, boolean treeCache) throws Exception {
+        final ZkTreeCache tree = closing(new ZkTreeCache(facade));
+        final ZkPreferences root = closing(treeCache ? new ZkPreferences(facade, true, false, cachedValues, tree::watch)
+                : new ZkPreferences(facade, true, false, cachedValues));
+        tree.start();
+        final ZkPreferences prefs = (ZkPreferences) root.node("node");
+        prefs.put("key", "value");
+        assertEquals(prefs.get("key", null), "value");
+        assertEquals(prefs.keys(), new String[] {"key"});
+        assertEquals(prefs.childrenNames(), new String[0]);
+
+        // by another client, so only the watch could tell
+        facade.create().forPath("/node/key/k", bytes("v"));
+        assertEquals(prefs.keys(), new String[] {"key"});
+        assertEquals(prefs.childrenNames(), new String[] {"key"});
+    }
+
+    @Test
+    public void shouldFailListingWhenZookeeperFails() throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(curator, true, false, false));
+        final Preferences prefs = root.node("node");
+        prefs.put("key", "value");
+        doThrow(new IllegalStateException("Zookeeper is down")).when(curator).getChildren();
+        try {
+            prefs.keys();
+            fail("Listed the keys of an unreachable node");
+        } catch (BackingStoreException e) {
+            assertEquals(e.getCause().getMessage(), "Zookeeper is down");
+        }
+        try {
+            prefs.childrenNames();
+            fail("Listed the children of an unreachable node");
+        } catch (BackingStoreException e) {
+            assertEquals(e.getCause().getMessage(), "Zookeeper is down");
+        }
+    }
+
+    @Test
+    public void shouldReadAndWriteAsynchronously() throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(facade, true, false, false));
+        final ZkPreferences prefs = (ZkPreferences) root.node("node");
+        final List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            writes.add(prefs.putAsync("key" + i, "value" + i));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        prefs.node("child");
+
+        final List<CompletableFuture<String>> reads = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            reads.add(prefs.getAsync("key" + i, null));
+        }
+        for (int i = 0; i < 30; i++) {
+            assertEquals(reads.get(i).get(5, TimeUnit.SECONDS), "value" + i);
+            assertEquals(prefs.get("key" + i, null), "value" + i);
+        }
+        assertEquals(prefs.getAsync("missing", "def").get(5, TimeUnit.SECONDS), "def");
+
+        prefs.putAsync("key0", "updated").get(5, TimeUnit.SECONDS);
+        assertEquals(prefs.get("key0", null), "updated");
+
+        assertEquals(new TreeSet<>(Arrays.asList(prefs.keysAsync().get(5, TimeUnit.SECONDS))),
+                new TreeSet<>(Arrays.asList(prefs.keys())));
+        assertEquals(prefs.childrenNamesAsync().get(5, TimeUnit.SECONDS), new String[] {"child"});
+    }
+
+    @Test
+    public void shouldApplyTheWritesOfAKeyInOrder() throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(facade, true, false, false));
+        final ZkPreferences prefs = (ZkPreferences) root.node("node");
+        final List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            writes.add(prefs.putAsync("key", "value" + i));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+        assertEquals(prefs.get("key", null), "value19");
+        assertEquals(prefs.version("key"), 19);
+
+        // the synchronous writes wait for the asynchronous ones
+        for (int i = 0; i < 20; i++) {
+            prefs.putAsync("key", "async" + i);
+        }
+        prefs.put("key", "sync");
+        assertEquals(prefs.get("key", null), "sync");
+        assertEquals(prefs.version("key"), 40);
+    }
+
+    @Test(dataProvider = "watches")
+    public void shouldStampTheStateOfANode(boolean cachedValues, boolean treeCache) throws Exception {
+        final ZkTreeCache tree = closing(new ZkTreeCache(facade));
+        final ZkPreferences root = closing(treeCache ? new ZkPreferences(facade, true, false, cachedValues, tree::watch)
+                : new ZkPreferences(facade, true, false, cachedValues));
+        final ZkPreferences other = closing(new ZkPreferences(facade, true, false, false));
+        tree.start();
+        final ZkPreferences prefs = (ZkPreferences) root.node("node");
+        prefs.put("key", "value");
+        prefs.node("child").flush();
+        final Set<String> stamps = new TreeSet<>();
+        stamps.add(prefs.stamp());
+        assertEquals(prefs.stamp(), prefs.stamp());
+        assertEquals(((ZkPreferences) other.node("node")).stamp(), prefs.stamp());
+
+        // any change to the keys, values or children of the node, by any client
+        other.node("node").put("key", "updated");
+        assertTrue(stamps.add(prefs.stamp()));
+        prefs.put("other", "value");
+        assertTrue(stamps.add(prefs.stamp()));
+        prefs.remove("other");
+        assertTrue(stamps.add(prefs.stamp()));
+        prefs.node("child2").flush();
+        assertTrue(stamps.add(prefs.stamp()));
+        prefs.node("key").flush();
+        assertTrue(stamps.add(prefs.stamp()));
+        // including a key turned into a node, which the watch doesn't tell
+        prefs.put("leaf", "value");
+        assertEquals(prefs.get("leaf", null), "value");
+        assertTrue(stamps.add(prefs.stamp()));
+        facade.create().forPath("/node/leaf/k", bytes("v"));
+        assertTrue(stamps.add(prefs.stamp()));
+
+        // but not to the ones of its children
+        final String stamp = prefs.stamp();
+        prefs.node("child").put("k", "v");
+        assertEquals(prefs.stamp(), stamp);
+
+        prefs.removeNode();
+        try {
+            prefs.stamp();
+            fail("Stamped a removed node");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(dataProvider = "cachedValues")
+    public void shouldWriteConditionally(boolean cachedValues) throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(facade, true, false, cachedValues));
+        final ZkPreferences other = closing(new ZkPreferences(facade, true, false, cachedValues));
+        final ZkPreferences prefs = (ZkPreferences) root.node("node");
+        assertEquals(prefs.version("key"), -1);
+        assertTrue(prefs.compareAndSet("key", -1, "v0"));
+        assertFalse(prefs.compareAndSet("key", -1, "v1"));
+        assertEquals(prefs.version("key"), 0);
+        assertTrue(prefs.compareAndSet("key", 0, "v1"));
+        assertFalse(prefs.compareAndSet("key", 0, "v2"));
+        assertEquals(prefs.get("key", null), "v1");
+
+        // modified by another client in the meantime
+        other.node("node").put("key", "other");
+        assertFalse(prefs.compareAndSet("key", 1, "v2"));
+        assertFalse(prefs.compareAndSet("key", "v1", "v2"));
+        assertTrue(prefs.compareAndSet("key", "other", "v2"));
+        assertEquals(prefs.version("key"), 3);
+        assertEquals(other.node("node").get("key", null), "v2");
+
+        assertFalse(prefs.compareAndRemove("key", 2));
+        assertFalse(prefs.compareAndRemove("key", "other"));
+        assertTrue(prefs.compareAndRemove("key", "v2"));
+        assertNull(prefs.get("key", null));
+        assertFalse(prefs.compareAndRemove("key", "v2"));
+        assertTrue(prefs.compareAndSet("key", null, "again"));
+        assertTrue(prefs.compareAndRemove("key", 0));
+        assertEquals(prefs.keys(), new String[0]);
+    }
+
+    @DataProvider
+    public Object[][] cachedValues() {
+        return new Object[][] {{false}, {true}};
+    }
+
+    @DataProvider
+    public Object[][] watches() {
+        // values cached or not, with a children cache per node or a single tree cache
+        return new Object[][] {{false, false}, {true, false}, {true, true}};
+    }
+
+    @Test
+    public void shouldCountWithoutLocks() throws Exception {
+        final List<ZkPreferences> clients = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final ZkPreferences client = closing(new ZkPreferences(facade, true, false, i % 2 == 0));
+            clients.add(client);
+            final Preferences prefs = client.node("counter");
+            threads.add(new Thread(() -> {
+                for (int n = 0; n < 25; n++) {
+                    while (true) {
+                        final String count = prefs.get("count", null);
+                        final String next = String.valueOf(count == null ? 1 : Integer.parseInt(count) + 1);
+                        if (((VersionedPreferences) prefs).compareAndSet("count", count, next)) {
+                            break;
+                        }
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join(30_000);
+        }
+        assertEquals(clients.get(1).node("counter").get("count", null), "100");
+        assertEquals(((VersionedPreferences) clients.get(1).node("counter")).version("count"), 99);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldNotReadRemovedNodesAsynchronously() throws Exception {
+        final ZkPreferences root = closing(new ZkPreferences(facade, true, false, false));
+        final ZkPreferences prefs = (ZkPreferences) root.node("removed");
+        prefs.removeNode();
+        prefs.getAsync("key", null);
+    }
+
+    private <T extends Closeable> T closing(T closeable) {
+        closeables.push(closeable);
+        return closeable;
+    }
+
+    /**
+     * @return a latch released once the key is notified to change to the given value
+     */
+    static CountDownLatch changed(Preferences prefs, String key, String value) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        prefs.addPreferenceChangeListener(event -> {
+            if (key.equals(event.getKey()) && Objects.equals(value, event.getNewValue())) {
+                latch.countDown();
+            }
+        });
+        return latch;
+    }
+
     Stat stat(int cversion, int version, int dataLength) {
         final Stat stat = Mockito.mock(Stat.class);
         when(stat.getCversion()).thenReturn(cversion);
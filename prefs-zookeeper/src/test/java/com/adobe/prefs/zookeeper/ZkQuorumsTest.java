@@ -0,0 +1,57 @@
+package com.adobe.prefs.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+public class ZkQuorumsTest {
+
+    @Test
+    public void shouldRouteRootsByTheLongestPrefix() {
+        final Map<String, String> routes = ZkQuorums.routes(" /prefs/sys=zk1:2181,zk2:2181;/prefs/usr/=zk3:2181; "
+                + "/prefs/usr/admin=zk4:2181;");
+        assertEquals(routes.size(), 3);
+        final ZkQuorums quorums = new ZkQuorums("localhost", routes, quorum -> mock(CuratorFramework.class));
+
+        assertEquals(quorums.quorum("/prefs/sys"), "zk1:2181,zk2:2181");
+        assertEquals(quorums.quorum("/prefs/sys/"), "zk1:2181,zk2:2181");
+        assertEquals(quorums.quorum("/prefs/usr/john"), "zk3:2181");
+        assertEquals(quorums.quorum("/prefs/usr/admin"), "zk4:2181");
+        assertEquals(quorums.quorum("/prefs/usr/admin/app"), "zk4:2181");
+        assertEquals(quorums.quorum("/prefs/usr/administrator"), "zk3:2181");
+        assertEquals(quorums.quorum("/prefs/system"), "localhost");
+        assertEquals(quorums.quorum("/"), "localhost");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectInvalidRoutes() {
+        ZkQuorums.routes("/prefs/sys");
+    }
+
+    @Test
+    public void shouldShareTheClientOfEachQuorum() {
+        final List<String> created = new ArrayList<>();
+        final ZkQuorums quorums = new ZkQuorums("localhost", ZkQuorums.routes("/prefs/sys=zk1:2181"), quorum -> {
+            created.add(quorum);
+            return mock(CuratorFramework.class);
+        });
+
+        final CuratorFramework user = quorums.client("/prefs/usr/a");
+        assertSame(quorums.client("/prefs/usr/b"), user);
+        assertSame(quorums.client("/prefs/usr"), user);
+
+        final CuratorFramework system = quorums.client("/prefs/sys");
+        assertSame(quorums.client("/prefs/sys/app"), system);
+        assertNotSame(system, user);
+        assertEquals(created, Arrays.asList("localhost", "zk1:2181"));
+    }
+}
@@ -0,0 +1,138 @@
+package com.adobe.prefs.zookeeper;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.prefs.Preferences;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ZkSnapshotTest {
+
+    @Test
+    public void shouldReadTheWholeSubtree() throws Exception {
+        final String namespace = "/snapshot-" + UUID.randomUUID();
+        final ZkPreferences root = new ZkPreferences(ZkManager.curatorFacade(namespace), true, true, false);
+        try {
+            final Preferences node = root.node("a/b");
+            for (int i = 0; i < 20; i++) {
+                node.put("key" + i, "value" + i);
+                node.node("child" + i).put("k", "v" + i);
+            }
+            node.node("child0/grandchild").putInt("int", 42);
+            node.node("both").put("k", "v");
+            node.put("both", "b");
+            node.put("key0", "updated");
+            node.node("empty");
+            root.put("outside", "v");
+
+            for (int concurrency : new int[] {1, 1000}) {
+                final ZkSnapshot snapshot = ZkManager.snapshot(node, concurrency);
+                assertEquals(snapshot.rootPath(), "/a/b");
+                assertEquals(snapshot.size(), 20 + 20 + 1 + 1 + 1);
+                assertEquals(snapshot.get("/a/b", "key0", null), "updated");
+                assertEquals(snapshot.version("/a/b", "key0"), 1);
+                assertEquals(snapshot.get("/a/b", "key1", null), "value1");
+                assertEquals(snapshot.version("/a/b", "key1"), 0);
+                assertEquals(snapshot.get("/a/b", "both", null), "b");
+                assertEquals(snapshot.get("/a/b/both", "k", null), "v");
+                assertEquals(snapshot.get("/a/b/child7", "k", null), "v7");
+                assertEquals(snapshot.get("/a/b/child0/grandchild", "int", null), "42");
+                assertTrue(snapshot.nodeExists("/a/b/empty"));
+                assertTrue(snapshot.entries("/a/b/empty").isEmpty());
+                assertFalse(snapshot.nodeExists("/a"));
+                assertNull(snapshot.get("/", "outside", null));
+                assertEquals(snapshot.version("/a/b", "missing"), -1);
+
+                final List<String> paths = new ArrayList<>(snapshot.nodePaths());
+                assertEquals(paths.size(), 1 + 20 + 2 + 1);
+                assertEquals(paths.subList(0, 3), Arrays.asList("/a/b", "/a/b/both", "/a/b/child0"));
+                assertEquals(paths.get(paths.size() - 1), "/a/b/child0/grandchild");
+            }
+        } finally {
+            root.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
+    @Test
+    public void shouldBeImmutable() throws Exception {
+        final String namespace = "/snapshot-" + UUID.randomUUID();
+        final ZkPreferences root = new ZkPreferences(ZkManager.curatorFacade(namespace), true, true, false);
+        try {
+            root.put("k", "v");
+            final ZkSnapshot snapshot = ZkManager.snapshot(root);
+            root.put("k", "changed");
+            assertEquals(snapshot.get("/", "k", null), "v");
+
+            final Map<String, ZkSnapshot.Entry> entries = snapshot.entries("/");
+            try {
+                entries.remove("k");
+                fail("Snapshot should be immutable");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+            try {
+                snapshot.nodePaths().clear();
+                fail("Snapshot should be immutable");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        } finally {
+            root.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
+    @Test
+    public void shouldReadASingleNode() throws Exception {
+        final String namespace = "/snapshot-" + UUID.randomUUID();
+        final ZkPreferences root = new ZkPreferences(ZkManager.curatorFacade(namespace), true, true, false);
+        try {
+            final Preferences node = root.node("node");
+            for (int i = 0; i < 100; i++) {
+                node.put("k" + i, "v" + i);
+            }
+            node.node("b").put("deep", "v");
+            node.node("a").node("deeper");
+
+            final ZkSnapshot snapshot = ZkManager.snapshotNode(node);
+            assertEquals(snapshot.entries("/node").size(), 100);
+            assertEquals(snapshot.get("/node", "k42", null), "v42");
+            assertEquals(snapshot.childrenNames("/node"), Arrays.asList("a", "b"));
+            // the children are listed, but not read
+            assertEquals(snapshot.entries("/node/b").size(), 0);
+            assertFalse(snapshot.nodeExists("/node/a/deeper"));
+            // a listing and one read per child
+            assertEquals(snapshot.requests(), 1 + 102);
+
+            assertEquals(ZkManager.snapshotNode(root).childrenNames("/"), Collections.singletonList("node"));
+        } finally {
+            root.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldNotReadRemovedNodes() throws Exception {
+        final String namespace = "/snapshot-" + UUID.randomUUID();
+        final ZkPreferences root = new ZkPreferences(ZkManager.curatorFacade(namespace), true, true, false);
+        try {
+            final Preferences node = root.node("removed");
+            node.removeNode();
+            ZkManager.snapshot(node);
+        } finally {
+            root.close();
+            ZkManager.curatorFramework().delete().deletingChildrenIfNeeded().forPath(namespace);
+        }
+    }
+}